@@ -0,0 +1,150 @@
+package com.vitalink.connect
+
+import android.app.AlarmManager
+import android.app.PendingIntent
+import android.content.Context
+import android.content.Intent
+import android.os.SystemClock
+import androidx.room.Dao
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.Insert
+import androidx.room.PrimaryKey
+import androidx.room.Query
+import androidx.room.Update
+
+// One registered ReminderReceiver alarm. planKey names what it is for ("appt|<id>|<offset>",
+// "med|<slot>"); id is allocated once, so the alarm keeps its PendingIntent request code
+// (REQUEST_CODE_BASE + id) for as long as it stays in the plan.
+@Entity(tableName = "alarm_plan", indices = [Index(value = ["planKey"], unique = true)])
+data class PlannedAlarm(
+    @PrimaryKey(autoGenerate = true) val id: Long = 0,
+    val planKey: String,
+    val fireAt: Long,
+    // 0 for a one-shot alarm, otherwise the repeat interval
+    val repeatMs: Long,
+    val title: String,
+    val body: String
+)
+
+@Dao
+abstract class AlarmPlanDao {
+    @Query("SELECT * FROM alarm_plan WHERE planKey LIKE :scope || '|%'")
+    abstract fun inScope(scope: String): List<PlannedAlarm>
+
+    @Insert
+    abstract fun insert(alarm: PlannedAlarm): Long
+
+    @Update
+    abstract fun update(alarm: PlannedAlarm)
+
+    @Query("DELETE FROM alarm_plan WHERE id = :id")
+    abstract fun delete(id: Long)
+}
+
+// Keeps AlarmManager in line with a desired set of alarms by diffing it against the stored plan:
+// only added, removed or changed alarms are registered or cancelled. AlarmManager drops
+// everything on reboot, so the first apply after a boot registers the whole plan again.
+object AlarmPlanner {
+    private const val REQUEST_CODE_BASE = 200_000
+    private const val ACTION_PLANNED = "com.vitalink.connect.action.PLANNED_ALARM"
+    private const val PREFS = "vitalink_reminders"
+    private const val KEY_BOOT = "alarm_plan_boot"
+
+    data class Desired(val planKey: String, val fireAt: Long, val repeatMs: Long, val title: String, val body: String = "")
+
+    // [scope] is the planKey prefix this call owns; alarms of other scopes are left alone
+    @Synchronized
+    fun apply(context: Context, scope: String, desired: List<Desired>) {
+        val dao = LocalDb.get(context).alarmPlan()
+        val am = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
+        val sp = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+        val rebooted = !appliedThisBoot(context, scope)
+
+        val wanted = desired.associateBy { it.planKey }
+
+        LocalDb.get(context).runInTransaction {
+            // Read inside the transaction so the diff is against the plan these writes replace
+            val existing = dao.inScope(scope).associateBy { it.planKey }
+            for ((key, old) in existing) {
+                if (key !in wanted) {
+                    cancel(context, am, old)
+                    dao.delete(old.id)
+                }
+            }
+            for ((key, d) in wanted) {
+                val old = existing[key]
+                when {
+                    old == null -> {
+                        val row = PlannedAlarm(planKey = key, fireAt = d.fireAt, repeatMs = d.repeatMs, title = d.title, body = d.body)
+                        register(context, am, row.copy(id = dao.insert(row)))
+                    }
+                    !sameAlarm(old, d) -> {
+                        val row = old.copy(fireAt = d.fireAt, repeatMs = d.repeatMs, title = d.title, body = d.body)
+                        dao.update(row)
+                        register(context, am, row)
+                    }
+                    rebooted -> register(context, am, old)
+                }
+            }
+        }
+        sp.edit().putLong("${KEY_BOOT}_$scope", bootTime()).apply()
+    }
+
+    // A daily alarm recomputed the next day has moved by whole periods, which is the same alarm
+    private fun sameAlarm(old: PlannedAlarm, d: Desired): Boolean {
+        if (old.repeatMs != d.repeatMs || old.title != d.title || old.body != d.body) return false
+        if (old.repeatMs > 0) return Math.floorMod(d.fireAt - old.fireAt, old.repeatMs) == 0L
+        return old.fireAt == d.fireAt
+    }
+
+    private fun pendingIntent(context: Context, alarm: PlannedAlarm): PendingIntent {
+        val intent = Intent(context, ReminderReceiver::class.java).setAction(ACTION_PLANNED)
+        intent.putExtra("title", alarm.title)
+        if (alarm.body.isNotEmpty()) intent.putExtra("body", alarm.body)
+        return PendingIntent.getBroadcast(context, REQUEST_CODE_BASE + alarm.id.toInt(), intent, PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE)
+    }
+
+    private fun register(context: Context, am: AlarmManager, alarm: PlannedAlarm) {
+        val pi = pendingIntent(context, alarm)
+        if (alarm.repeatMs > 0) {
+            var at = alarm.fireAt
+            val now = System.currentTimeMillis()
+            if (at < now) at += ((now - at) / alarm.repeatMs + 1) * alarm.repeatMs
+            am.setRepeating(AlarmManager.RTC_WAKEUP, at, alarm.repeatMs, pi)
+        } else if (alarm.fireAt > System.currentTimeMillis()) {
+            setExact(am, alarm.fireAt, pi)
+        }
+    }
+
+    private fun cancel(context: Context, am: AlarmManager, alarm: PlannedAlarm) {
+        val pi = pendingIntent(context, alarm)
+        try { am.cancel(pi) } catch (_: Exception) {}
+        pi.cancel()
+    }
+
+    private fun setExact(am: AlarmManager, whenMs: Long, pi: PendingIntent) {
+        try {
+            if (android.os.Build.VERSION.SDK_INT >= 31) {
+                if (am.canScheduleExactAlarms()) {
+                    am.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
+                } else {
+                    am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
+                }
+            } else {
+                am.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
+            }
+        } catch (e: Exception) {
+            try {
+                am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
+            } catch (_: Exception) {}
+        }
+    }
+
+    fun appliedThisBoot(context: Context, scope: String): Boolean {
+        val sp = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+        return Math.abs(sp.getLong("${KEY_BOOT}_$scope", 0L) - bootTime()) < 60_000L
+    }
+
+    private fun bootTime() = System.currentTimeMillis() - SystemClock.elapsedRealtime()
+}
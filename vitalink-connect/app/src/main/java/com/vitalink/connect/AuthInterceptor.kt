@@ -0,0 +1,26 @@
+package com.vitalink.connect
+
+import android.content.Context
+import kotlinx.coroutines.runBlocking
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import okhttp3.Interceptor
+import okhttp3.Response
+
+// Adds the current Supabase access token (see AuthTokens) to requests for our own API host.
+// Requests that already carry an Authorization header are left alone, as is traffic to any
+// other host; 401s are handled by AuthTokens.TokenAuthenticator on the same client.
+class AuthInterceptor(context: Context) : Interceptor {
+    private val appContext = context.applicationContext
+    private val apiHost by lazy { appContext.getString(R.string.api_base_url).toHttpUrlOrNull()?.host }
+
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        if (request.header("Authorization") != null || request.url.host != apiHost) {
+            return chain.proceed(request)
+        }
+        // Refreshes first when the token is about to expire; OkHttp calls run off the main thread
+        val token = runBlocking { AuthTokens.current(appContext) }
+        if (token.isEmpty()) return chain.proceed(request)
+        return chain.proceed(request.newBuilder().header("Authorization", "Bearer $token").build())
+    }
+}
@@ -0,0 +1,91 @@
+package com.vitalink.connect
+
+import android.content.Context
+import android.util.Base64
+import io.github.jan.supabase.SupabaseClient
+import io.github.jan.supabase.auth.Auth
+import io.github.jan.supabase.auth.auth
+import io.github.jan.supabase.createSupabaseClient
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import okhttp3.Authenticator
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.Route
+import org.json.JSONObject
+
+// Owns the stored Supabase access/refresh tokens. Refreshes are single-flight: callers that hit
+// an expired token at the same time wait on one refresh and all get its result. One Supabase
+// auth client is kept for the process instead of building one per refresh.
+object AuthTokens {
+    // Refresh this long before the access token's exp so a burst of requests doesn't hit a 401
+    private const val REFRESH_MARGIN_SECONDS = 120L
+
+    private val mutex = Mutex()
+    private var client: SupabaseClient? = null
+
+    private fun prefs(context: Context) = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE)
+
+    private fun supabase(context: Context): SupabaseClient = synchronized(this) {
+        client ?: createSupabaseClient(context.getString(R.string.supabase_url), context.getString(R.string.supabase_anon_key)) {
+            install(Auth) {
+                // Tokens live in our prefs; this client only performs refreshes
+                autoLoadFromStorage = false
+                alwaysAutoRefresh = false
+            }
+        }.also { client = it }
+    }
+
+    // The stored access token, refreshed first if it is about to expire. "" when signed out.
+    suspend fun current(context: Context): String {
+        val token = prefs(context).getString("supabaseAccessToken", "") ?: ""
+        if (token.isEmpty() || !expiresSoon(token)) return token
+        return refresh(context, token) ?: token
+    }
+
+    // Refreshes unless someone else already replaced [staleToken] while we waited for the lock.
+    suspend fun refresh(context: Context, staleToken: String?): String? = mutex.withLock {
+        val sp = prefs(context)
+        val stored = sp.getString("supabaseAccessToken", "") ?: ""
+        if (stored.isNotEmpty() && stored != staleToken && !expiresSoon(stored)) return@withLock stored
+
+        val refreshToken = sp.getString("supabaseRefreshToken", "") ?: ""
+        if (refreshToken.isEmpty()) return@withLock null
+        try {
+            val session = supabase(context).auth.refreshSession(refreshToken)
+            sp.edit()
+                .putString("supabaseAccessToken", session.accessToken)
+                .putString("supabaseRefreshToken", session.refreshToken)
+                .apply()
+            session.accessToken
+        } catch (e: Exception) {
+            e.printStackTrace()
+            null
+        }
+    }
+
+    private fun expiresSoon(jwt: String): Boolean {
+        val exp = try {
+            val payload = jwt.split(".")[1]
+            JSONObject(String(Base64.decode(payload, Base64.URL_SAFE or Base64.NO_PADDING or Base64.NO_WRAP))).optLong("exp", 0L)
+        } catch (_: Exception) {
+            0L
+        }
+        if (exp == 0L) return false
+        return exp - System.currentTimeMillis() / 1000 < REFRESH_MARGIN_SECONDS
+    }
+
+    // Answers a 401 from our API with one shared refresh and a single retry.
+    class TokenAuthenticator(context: Context) : Authenticator {
+        private val appContext = context.applicationContext
+
+        override fun authenticate(route: Route?, response: Response): Request? {
+            if (response.priorResponse != null) return null
+            val sent = response.request.header("Authorization")?.removePrefix("Bearer ") ?: return null
+            val fresh = runBlocking { refresh(appContext, sent) } ?: return null
+            if (fresh == sent) return null
+            return response.request.newBuilder().header("Authorization", "Bearer $fresh").build()
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.vitalink.connect
+
+import okhttp3.Interceptor
+import okhttp3.MediaType
+import okhttp3.Request
+import okhttp3.RequestBody
+import okhttp3.Response
+import okio.BufferedSink
+import okio.GzipSink
+import okio.buffer
+
+// Gzips request bodies for requests that opt in with [compress]. The body is compressed as it
+// is written to the socket, so streaming bodies stay streaming. The server inflates
+// Content-Encoding: gzip on the sync and ingest routes.
+class GzipRequestInterceptor : Interceptor {
+    object Gzip
+
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        val body = request.body
+        if (body == null || request.tag(Gzip::class.java) == null || request.header("Content-Encoding") != null) {
+            return chain.proceed(request)
+        }
+        val gzipped = request.newBuilder()
+            .header("Content-Encoding", "gzip")
+            .method(request.method, gzip(body))
+            .build()
+        return chain.proceed(gzipped)
+    }
+
+    private fun gzip(body: RequestBody) = object : RequestBody() {
+        override fun contentType(): MediaType? = body.contentType()
+
+        // Compressed length isn't known up front; sent chunked
+        override fun contentLength(): Long = -1
+
+        override fun isOneShot(): Boolean = body.isOneShot()
+
+        override fun writeTo(sink: BufferedSink) {
+            GzipSink(sink).buffer().use { body.writeTo(it) }
+        }
+    }
+
+    companion object {
+        fun compress(builder: Request.Builder): Request.Builder = builder.tag(Gzip::class.java, Gzip)
+    }
+}
@@ -0,0 +1,77 @@
+package com.vitalink.connect
+
+import androidx.health.connect.client.HealthConnectClient
+import androidx.health.connect.client.records.DistanceRecord
+import androidx.health.connect.client.records.HeartRateRecord
+import androidx.health.connect.client.records.OxygenSaturationRecord
+import androidx.health.connect.client.records.StepsRecord
+import androidx.health.connect.client.request.AggregateGroupByPeriodRequest
+import androidx.health.connect.client.time.TimeRangeFilter
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import java.time.LocalDate
+import java.time.Period
+import java.time.ZoneId
+
+class DailyTotals(
+    val steps: Map<String, Long>,
+    val distance: Map<String, Double>,
+    val heartRate: Map<String, HrAgg>,
+    val spo2: Map<String, Spo2Agg>
+)
+
+// Display-side reads for the home cards. Steps, distance and heart rate come from Health
+// Connect's own aggregation, so the cards never page through raw records; raw reads are
+// left to the upload path. SpO2 has no aggregate metrics and is still read as records.
+object HealthAggregates {
+    private val DAILY_METRICS = setOf(
+        StepsRecord.COUNT_TOTAL,
+        DistanceRecord.DISTANCE_TOTAL,
+        HeartRateRecord.BPM_MIN,
+        HeartRateRecord.BPM_MAX,
+        HeartRateRecord.BPM_AVG,
+        HeartRateRecord.MEASUREMENTS_COUNT
+    )
+
+    // Keys are yyyy-MM-dd for the [days] local days ending with [today], newest first.
+    suspend fun daily(client: HealthConnectClient, zone: ZoneId, today: LocalDate, days: Int): DailyTotals = coroutineScope {
+        val first = today.minusDays((days - 1).toLong())
+        val spo2Job = async {
+            val from = first.atStartOfDay(zone).toInstant()
+            val to = today.plusDays(1).atStartOfDay(zone).toInstant()
+            val bucketer = ZoneBucketer(zone, from, to)
+            val byDay = HashMap<Long, Spo2Agg>()
+            HealthReader.pages(client, OxygenSaturationRecord::class, from, to).collect { page -> HealthBuckets.spo2ByDay(bucketer, page, byDay) }
+            byDay
+        }
+        val groups = client.aggregateGroupByPeriod(
+            AggregateGroupByPeriodRequest(
+                metrics = DAILY_METRICS,
+                timeRangeFilter = TimeRangeFilter.between(first.atStartOfDay(), today.plusDays(1).atStartOfDay()),
+                timeRangeSlicer = Period.ofDays(1)
+            )
+        ).associateBy { it.startTime.toLocalDate() }
+        val spo2ByDay = spo2Job.await()
+
+        val steps = linkedMapOf<String, Long>()
+        val distance = linkedMapOf<String, Double>()
+        val heartRate = linkedMapOf<String, HrAgg>()
+        val spo2 = linkedMapOf<String, Spo2Agg>()
+        for (i in 0 until days) {
+            val date = today.minusDays(i.toLong())
+            val key = date.toString()
+            val r = groups[date]?.result
+            steps[key] = r?.get(StepsRecord.COUNT_TOTAL) ?: 0L
+            distance[key] = r?.get(DistanceRecord.DISTANCE_TOTAL)?.inMeters ?: 0.0
+            heartRate[key] = hrAgg(r?.get(HeartRateRecord.BPM_MIN), r?.get(HeartRateRecord.BPM_MAX), r?.get(HeartRateRecord.BPM_AVG), r?.get(HeartRateRecord.MEASUREMENTS_COUNT))
+            spo2[key] = spo2ByDay[date.toEpochDay()] ?: Spo2Agg()
+        }
+        DailyTotals(steps, distance, heartRate, spo2)
+    }
+
+    // HrAgg keeps a running sum; rebuild it from the aggregate average so sum / count still gives the average.
+    private fun hrAgg(min: Long?, max: Long?, avg: Long?, count: Long?): HrAgg {
+        if (min == null || max == null || avg == null || count == null || count == 0L) return HrAgg()
+        return HrAgg(min = min, max = max, sum = avg * count, count = count.toInt())
+    }
+}
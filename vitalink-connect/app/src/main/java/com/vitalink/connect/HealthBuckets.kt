@@ -0,0 +1,64 @@
+package com.vitalink.connect
+
+import androidx.health.connect.client.records.OxygenSaturationRecord
+import java.time.Instant
+import java.time.ZoneId
+
+// Maps epoch millis to local epoch-days using the zone offsets that apply
+// between [from] and [to], looked up once up front instead of building a LocalDateTime per record.
+class ZoneBucketer(private val zone: ZoneId, from: Instant, to: Instant) {
+    private val fromMs = from.toEpochMilli()
+    private val toMs = to.toEpochMilli()
+    private val starts: LongArray
+    private val offsets: LongArray
+
+    init {
+        val rules = zone.rules
+        val s = mutableListOf(Long.MIN_VALUE)
+        val o = mutableListOf(rules.getOffset(from).totalSeconds * 1000L)
+        var t = rules.nextTransition(from)
+        while (t != null && !t.instant.isAfter(to)) {
+            s.add(t.instant.toEpochMilli())
+            o.add(t.offsetAfter.totalSeconds * 1000L)
+            t = rules.nextTransition(t.instant)
+        }
+        starts = s.toLongArray()
+        offsets = o.toLongArray()
+    }
+
+    fun offsetMillis(epochMillis: Long): Long {
+        if (epochMillis < fromMs || epochMillis > toMs) {
+            return zone.rules.getOffset(Instant.ofEpochMilli(epochMillis)).totalSeconds * 1000L
+        }
+        var i = starts.size - 1
+        while (i > 0 && epochMillis < starts[i]) i--
+        return offsets[i]
+    }
+
+    fun epochDay(epochMillis: Long): Long = epochDay(epochMillis, offsetMillis(epochMillis))
+
+    companion object {
+        const val HOUR_MS = 60 * 60 * 1000L
+        const val DAY_MS = 24 * HOUR_MS
+
+        // The one local-day rule for every reader and uploader: rows that already carry their
+        // zone offset (the outbox stores it per row) are bucketed through here directly
+        fun epochDay(epochMillis: Long, offsetMillis: Long): Long = Math.floorDiv(epochMillis + offsetMillis, DAY_MS)
+    }
+}
+
+object HealthBuckets {
+    // Single pass over the SpO2 records: each record's local day is computed once and folded
+    // into that day's running min / max / average. Pass the same [out] for every page of a read.
+    fun spo2ByDay(bucketer: ZoneBucketer, spo2: List<OxygenSaturationRecord>, out: HashMap<Long, Spo2Agg> = HashMap()): Map<Long, Spo2Agg> {
+        for (r in spo2) {
+            val agg = out.getOrPut(bucketer.epochDay(r.time.toEpochMilli())) { Spo2Agg() }
+            val pct = r.percentage.value
+            if (pct < agg.min) agg.min = pct
+            if (pct > agg.max) agg.max = pct
+            agg.sum += pct
+            agg.count += 1
+        }
+        return out
+    }
+}
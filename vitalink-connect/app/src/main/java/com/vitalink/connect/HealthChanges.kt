@@ -0,0 +1,133 @@
+package com.vitalink.connect
+
+import android.content.Context
+import androidx.health.connect.client.HealthConnectClient
+import androidx.health.connect.client.changes.DeletionChange
+import androidx.health.connect.client.changes.UpsertionChange
+import androidx.health.connect.client.records.DistanceRecord
+import androidx.health.connect.client.records.HeartRateRecord
+import androidx.health.connect.client.records.OxygenSaturationRecord
+import androidx.health.connect.client.records.Record
+import androidx.health.connect.client.records.StepsRecord
+import androidx.health.connect.client.request.ChangesTokenRequest
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.time.Instant
+import kotlin.reflect.KClass
+
+class HealthChanges(
+    val steps: List<StepsRecord>,
+    val distance: List<DistanceRecord>,
+    val heartRate: List<HeartRateRecord>,
+    val spo2: List<OxygenSaturationRecord>,
+    val deletedIds: List<String>,
+    val nextTokens: Map<String, String>,
+    // Samples that came from changes tokens (HR counted per sample); full 7-day re-reads are left
+    // out, since they say nothing about how fast this device writes new data
+    val newSamples: Int
+) {
+    fun isEmpty() = steps.isEmpty() && distance.isEmpty() && heartRate.isEmpty() && spo2.isEmpty() && deletedIds.isEmpty()
+}
+
+// Reads only what changed in Health Connect since the last committed sync.
+// One changes token is kept per record type (and per patient); a type falls back
+// to a full 7-day read only when it has no token yet or its token has expired.
+// Full reads are not returned: each page goes to [onFullReadPage] as it arrives, so a
+// backfill never holds more than one page per type in memory.
+object HealthChangesReader {
+    private const val PREFS = "vitalink_hc_changes"
+    private const val BACKFILL_SECONDS = 7 * 24 * 60 * 60L
+
+    private class TypeChanges<T : Record>(val records: List<T>, val deletedIds: List<String>, val nextToken: String, val fullRead: Boolean = false)
+
+    suspend fun read(
+        context: Context,
+        client: HealthConnectClient,
+        patientId: String,
+        onFullReadPage: suspend (List<Record>) -> Unit
+    ): HealthChanges = coroutineScope {
+        val sp = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+        val gate = Semaphore(HealthReader.MAX_CONCURRENT_READS)
+        val stepsJob = async { gate.withPermit { readType(client, StepsRecord::class, sp.getString(key(patientId, "steps"), null), onFullReadPage) } }
+        val distJob = async { gate.withPermit { readType(client, DistanceRecord::class, sp.getString(key(patientId, "distance"), null), onFullReadPage) } }
+        val hrJob = async { gate.withPermit { readType(client, HeartRateRecord::class, sp.getString(key(patientId, "hr"), null), onFullReadPage) } }
+        val spo2Job = async { gate.withPermit { readType(client, OxygenSaturationRecord::class, sp.getString(key(patientId, "spo2"), null), onFullReadPage) } }
+        val steps = stepsJob.await()
+        val dist = distJob.await()
+        val hr = hrJob.await()
+        val spo2 = spo2Job.await()
+        HealthChanges(
+            steps.records,
+            dist.records,
+            hr.records,
+            spo2.records,
+            steps.deletedIds + dist.deletedIds + hr.deletedIds + spo2.deletedIds,
+            mapOf(
+                "steps" to steps.nextToken,
+                "distance" to dist.nextToken,
+                "hr" to hr.nextToken,
+                "spo2" to spo2.nextToken
+            ),
+            newSamples = listOf(steps, dist, spo2).sumOf { if (it.fullRead) 0 else it.records.size } +
+                (if (hr.fullRead) 0 else hr.records.sumOf { it.samples.size }) +
+                steps.deletedIds.size + dist.deletedIds.size + hr.deletedIds.size + spo2.deletedIds.size
+        )
+    }
+
+    // Only call once the server has acknowledged everything in [changes],
+    // otherwise the next run would skip records that never made it up.
+    fun commit(context: Context, patientId: String, changes: HealthChanges) {
+        val editor = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+        changes.nextTokens.forEach { (type, token) -> editor.putString(key(patientId, type), token) }
+        editor.apply()
+    }
+
+    fun reset(context: Context, patientId: String) {
+        val editor = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+        listOf("steps", "distance", "hr", "spo2").forEach { editor.remove(key(patientId, it)) }
+        editor.apply()
+    }
+
+    private fun key(patientId: String, type: String) = "$patientId:$type"
+
+    private suspend fun <T : Record> readType(
+        client: HealthConnectClient,
+        clazz: KClass<T>,
+        token: String?,
+        onFullReadPage: suspend (List<Record>) -> Unit
+    ): TypeChanges<T> {
+        if (token == null) return fullRead(client, clazz, onFullReadPage)
+        val out = mutableListOf<T>()
+        val deleted = mutableListOf<String>()
+        var next: String = token
+        do {
+            val resp = client.getChanges(next)
+            if (resp.changesTokenExpired) return fullRead(client, clazz, onFullReadPage)
+            for (change in resp.changes) {
+                when (change) {
+                    is UpsertionChange -> if (clazz.isInstance(change.record)) {
+                        @Suppress("UNCHECKED_CAST")
+                        out.add(change.record as T)
+                    }
+                    is DeletionChange -> deleted.add(change.recordId)
+                }
+            }
+            next = resp.nextChangesToken
+        } while (resp.hasMore)
+        return TypeChanges(out, deleted, next)
+    }
+
+    private suspend fun <T : Record> fullRead(
+        client: HealthConnectClient,
+        clazz: KClass<T>,
+        onFullReadPage: suspend (List<Record>) -> Unit
+    ): TypeChanges<T> {
+        // Take the token before reading so anything written during the backfill shows up next run
+        val token = client.getChangesToken(ChangesTokenRequest(setOf(clazz)))
+        val end = Instant.now()
+        HealthReader.pages(client, clazz, end.minusSeconds(BACKFILL_SECONDS), end).collect { page -> onFullReadPage(page) }
+        return TypeChanges(emptyList(), emptyList(), token, fullRead = true)
+    }
+}
@@ -0,0 +1,34 @@
+package com.vitalink.connect
+
+import androidx.health.connect.client.HealthConnectClient
+import androidx.health.connect.client.records.Record
+import androidx.health.connect.client.request.ReadRecordsRequest
+import androidx.health.connect.client.time.TimeRangeFilter
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import java.time.Instant
+import kotlin.reflect.KClass
+
+// Paged raw reads from Health Connect, used by the upload path (full 7-day backfills) and for
+// SpO2, which has no aggregate metrics. Callers consume the flow page by page rather than
+// collecting it into one list, so a read holds one page at a time.
+object HealthReader {
+    // Health Connect rate-limits reads per app; below the four synced types so a backfill of
+    // every type at once doesn't hit that limit
+    const val MAX_CONCURRENT_READS = 2
+
+    fun <T : Record> pages(client: HealthConnectClient, clazz: KClass<T>, start: Instant, end: Instant): Flow<List<T>> = flow {
+        var token: String? = null
+        do {
+            val resp = client.readRecords(
+                ReadRecordsRequest(
+                    clazz,
+                    timeRangeFilter = TimeRangeFilter.between(start, end),
+                    pageToken = token
+                )
+            )
+            emit(resp.records)
+            token = resp.pageToken
+        } while (token != null)
+    }
+}
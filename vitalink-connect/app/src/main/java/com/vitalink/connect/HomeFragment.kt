@@ -25,9 +25,9 @@ import androidx.health.connect.client.records.DistanceRecord
 import androidx.health.connect.client.records.HeartRateRecord
 import androidx.health.connect.client.records.OxygenSaturationRecord
 import androidx.health.connect.client.records.StepsRecord
-import androidx.health.connect.client.request.ReadRecordsRequest
-import androidx.health.connect.client.time.TimeRangeFilter
+import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
+import androidx.lifecycle.repeatOnLifecycle
 import androidx.lifecycle.ViewModelProvider
 import com.google.android.material.button.MaterialButton
 import kotlinx.coroutines.Dispatchers
@@ -36,7 +36,6 @@ import kotlinx.coroutines.withContext
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.Request
 import okhttp3.RequestBody.Companion.toRequestBody
-import org.json.JSONArray
 import org.json.JSONObject
 
 class HomeFragment : Fragment() {
@@ -286,6 +285,16 @@ class HomeFragment : Fragment() {
                 e.printStackTrace()
             }
         }
+
+        // Both the Read button and SyncWorker go through HealthSyncManager's single-flight sync;
+        // follow its progress whichever one started it.
+        viewLifecycleOwner.lifecycleScope.launch {
+            viewLifecycleOwner.repeatOnLifecycle(Lifecycle.State.STARTED) {
+                HealthSyncManager.state.collect { applySyncState(it) }
+            }
+        }
+        // This fetch already covers a sync that finished before the view was created
+        (HealthSyncManager.state.value as? SyncState.Done)?.let { viewModel.handledSyncDoneAt = it.finishedAt }
         lifecycleScope.launch {
             updateSyncStatus()
         }
@@ -350,179 +359,52 @@ class HomeFragment : Fragment() {
     }
 
     private suspend fun refreshReminderNotifications() {
-        val main = getMainActivity() ?: return
+        val appContext = requireContext().applicationContext
         withContext(Dispatchers.IO) {
-             ReminderScheduler.refresh(requireContext(), main.http, main.baseUrl, currentPatientId())
+            SyncTriggers.refreshReminders(appContext, force = true)
         }
     }
 
-    private suspend fun syncTodayToServer(
-        steps: Long, 
-        dist: Long, 
-        avgHr: Long, 
-        avgSpo2: Int,
-        stepRecords: List<StepsRecord>,
-        distRecords: List<DistanceRecord>,
-        hrRecords: List<HeartRateRecord>,
-        spo2Records: List<OxygenSaturationRecord>
-    ) {
-        val main = getMainActivity() ?: return
-        val patientId = currentPatientId()
-        if (patientId.isEmpty()) return
-        
-        val sp = requireContext().getSharedPreferences("vitalink", android.content.Context.MODE_PRIVATE)
-        val token = sp.getString("supabaseAccessToken", "") ?: ""
+    private suspend fun syncChangesToServer() {
+        if (currentPatientId().isEmpty()) return
 
         withContext(Dispatchers.Main) {
             android.widget.Toast.makeText(requireContext(), "Syncing data...", android.widget.Toast.LENGTH_SHORT).show()
         }
-        
-        withContext(Dispatchers.IO) {
-            try {
-                val zone = java.time.ZoneId.systemDefault()
-                val today = java.time.LocalDate.now(zone)
-
-                // Group records by date to batch uploads
-                val allDates = mutableSetOf<java.time.LocalDate>()
-                stepRecords.forEach { allDates.add(java.time.LocalDateTime.ofInstant(it.startTime, zone).toLocalDate()) }
-                distRecords.forEach { allDates.add(java.time.LocalDateTime.ofInstant(it.startTime, zone).toLocalDate()) }
-                hrRecords.forEach { allDates.add(java.time.LocalDateTime.ofInstant(it.startTime, zone).toLocalDate()) }
-                spo2Records.forEach { allDates.add(java.time.LocalDateTime.ofInstant(it.time, zone).toLocalDate()) }
-                allDates.add(today) // Ensure today is always processed
-                
-                val sortedDates = allDates.sorted()
-                var lastStatusCode = 0
-                var anySuccess = false
-
-                for (date in sortedDates) {
-                    val isToday = (date == today)
-                    val sRecs = stepRecords.filter { java.time.LocalDateTime.ofInstant(it.startTime, zone).toLocalDate() == date }
-                    val dRecs = distRecords.filter { java.time.LocalDateTime.ofInstant(it.startTime, zone).toLocalDate() == date }
-                    val hRecs = hrRecords.filter { java.time.LocalDateTime.ofInstant(it.startTime, zone).toLocalDate() == date }
-                    val oRecs = spo2Records.filter { java.time.LocalDateTime.ofInstant(it.time, zone).toLocalDate() == date }
-                    
-                    if (!isToday && sRecs.isEmpty() && dRecs.isEmpty() && hRecs.isEmpty() && oRecs.isEmpty()) continue
-
-                    val json = JSONObject().apply {
-                        put("patient_id", patientId)
-                        put("steps", if (isToday) steps else 0)
-                        put("distance", if (isToday) dist else 0)
-                        put("avg_hr", if (isToday) avgHr else 0)
-                        put("avg_spo2", if (isToday) avgSpo2 else 0)
-                        put("date", date.toString())
-
-                        // Add Raw Samples
-                        val stepsArray = JSONArray()
-                        sRecs.forEach { r ->
-                            val item = JSONObject()
-                            item.put("startTime", r.startTime.toString())
-                            item.put("endTime", r.endTime.toString())
-                            item.put("count", r.count)
-                            stepsArray.put(item)
-                        }
-                        put("steps_samples", stepsArray)
-
-                        val distArray = JSONArray()
-                        dRecs.forEach { r ->
-                            val item = JSONObject()
-                            item.put("startTime", r.startTime.toString())
-                            item.put("endTime", r.endTime.toString())
-                            item.put("distanceMeters", r.distance.inMeters)
-                            distArray.put(item)
-                        }
-                        put("distance_samples", distArray)
-
-                        val hrArray = JSONArray()
-                        hRecs.forEach { r ->
-                            r.samples.forEach { s ->
-                                val item = JSONObject()
-                                item.put("time", s.time.toString())
-                                item.put("bpm", s.beatsPerMinute)
-                                hrArray.put(item)
-                            }
-                        }
-                        put("hr_samples", hrArray)
-
-                        val spo2Array = JSONArray()
-                        oRecs.forEach { r ->
-                            val item = JSONObject()
-                            item.put("time", r.time.toString())
-                            item.put("percentage", r.percentage.value)
-                            spo2Array.put(item)
-                        }
-                        put("spo2_samples", spo2Array)
-                    }
 
-                    // Sync logic for this batch
-                    val url = "${main.baseUrl}/patient/sync-metrics"
-                    val body = json.toString().toRequestBody("application/json".toMediaType())
-                    val reqBuilder = Request.Builder().url(url).post(body)
-                    if (token.isNotEmpty()) {
-                        reqBuilder.header("Authorization", "Bearer $token")
-                    }
-                    val req = reqBuilder.build()
-                    val resp = main.http.newCall(req).execute()
-                    val code = resp.code
-                    resp.close()
+        // Shares the background sync's changes tokens and outbox, so only records Health Connect
+        // reports as new or deleted, plus anything still queued from a failed upload, are sent.
+        val appContext = requireContext().applicationContext
+        val code = withContext(Dispatchers.IO) { HealthSyncManager.syncData(appContext) }
 
-                    if (code in 200..299) {
-                        anySuccess = true
-                    }
-                    
-                    // If it's today, we care about the status for the UI
-                    if (isToday) {
-                        lastStatusCode = code
-                    } else if (lastStatusCode == 0 && code >= 400) {
-                         // If we haven't processed today yet, keep track if something failed earlier?
-                         // Actually, let's just use Today's code for UI, or the last error.
-                    }
-                }
+        // Card statuses are updated by the sync state observer in onViewCreated
+        withContext(Dispatchers.Main) {
+            val msg = when {
+                code == 204 -> "Already up to date"
+                code in 200..299 -> "Sync complete"
+                else -> "Sync failed"
+            }
+            android.widget.Toast.makeText(requireContext(), msg, android.widget.Toast.LENGTH_SHORT).show()
+        }
+    }
 
-                withContext(Dispatchers.Main) {
-                    if (lastStatusCode in 200..299) {
-                        val countMsg = "Synced: ${stepRecords.size} steps, ${hrRecords.size} HR, ${spo2Records.size} SpO2"
-                        android.widget.Toast.makeText(requireContext(), countMsg, android.widget.Toast.LENGTH_LONG).show()
-                        viewModel.statusSteps = lastStatusCode
-                        viewModel.statusDist = lastStatusCode
-                        viewModel.statusHr = lastStatusCode
-                        viewModel.statusSpo2 = lastStatusCode
-                        renderCards()
-                    } else {
-                        // If Today failed (or was never processed?), show error
-                        // If Today was empty and skipped, lastStatusCode might be 0.
-                        // If lastStatusCode is 0 but we had success on other days, maybe show success?
-                        // But UI shows Today's data. If Today is empty, it shows "No Data".
-                        // If Today has data and failed, lastStatusCode will be error.
-                        
-                        if (lastStatusCode == 0 && anySuccess) {
-                             // Synced past data, but today had no data or was skipped?
-                             // We can consider this a success for "sync" status generally.
-                             viewModel.statusSteps = 200
-                             viewModel.statusDist = 200
-                             viewModel.statusHr = 200
-                             viewModel.statusSpo2 = 200
-                             renderCards()
-                        } else {
-                            android.widget.Toast.makeText(requireContext(), "Sync failed", android.widget.Toast.LENGTH_SHORT).show()
-                            viewModel.statusSteps = if (lastStatusCode > 0) lastStatusCode else 500
-                            viewModel.statusDist = viewModel.statusSteps
-                            viewModel.statusHr = viewModel.statusSteps
-                            viewModel.statusSpo2 = viewModel.statusSteps
-                            renderCards()
-                        }
-                    }
-                }
-            } catch (e: Exception) {
-                withContext(Dispatchers.Main) {
-                    android.widget.Toast.makeText(requireContext(), "Sync Error: ${e.message}", android.widget.Toast.LENGTH_SHORT).show()
-                    val errCode = 0
-                    viewModel.statusSteps = errCode
-                    viewModel.statusDist = errCode
-                    viewModel.statusHr = errCode
-                    viewModel.statusSpo2 = errCode
-                    renderCards()
+    private fun applySyncState(state: SyncState) {
+        val view = view ?: return
+        val txt = view.findViewById<TextView>(R.id.txtSyncStatus)
+        when (state) {
+            is SyncState.Idle -> {}
+            is SyncState.Running -> txt?.text = "Syncing: ${state.phase}..."
+            is SyncState.Done -> {
+                val code = if (state.code > 0) state.code else 500
+                viewModel.statusSteps = code
+                viewModel.statusDist = code
+                viewModel.statusHr = code
+                viewModel.statusSpo2 = code
+                if (viewModel.dailySteps != null) renderCards()
+                if (state.finishedAt > viewModel.handledSyncDoneAt) {
+                    viewModel.handledSyncDoneAt = state.finishedAt
+                    viewLifecycleOwner.lifecycleScope.launch { updateSyncStatus() }
                 }
-                e.printStackTrace()
             }
         }
     }
@@ -675,165 +557,23 @@ class HomeFragment : Fragment() {
                 val zone = java.time.ZoneId.systemDefault()
                 
                 val endDate = java.time.LocalDateTime.ofInstant(nowInstant, zone).toLocalDate()
-                val sevenDaysAgo = nowInstant.minusSeconds(7 * 24 * 60 * 60)
-                
-                // Fetch Data
-                val steps7d = mutableListOf<StepsRecord>()
-                var stepsPageToken: String? = null
-                do {
-                    val resp = client.readRecords(
-                        ReadRecordsRequest(
-                            StepsRecord::class,
-                            timeRangeFilter = TimeRangeFilter.between(sevenDaysAgo, nowInstant),
-                            pageToken = stepsPageToken
-                        )
-                    )
-                    steps7d.addAll(resp.records)
-                    stepsPageToken = resp.pageToken
-                } while (stepsPageToken != null)
-
-                val dist7d = mutableListOf<DistanceRecord>()
-                var distPageToken: String? = null
-                do {
-                    val resp = client.readRecords(
-                        ReadRecordsRequest(
-                            DistanceRecord::class,
-                            timeRangeFilter = TimeRangeFilter.between(sevenDaysAgo, nowInstant),
-                            pageToken = distPageToken
-                        )
-                    )
-                    dist7d.addAll(resp.records)
-                    distPageToken = resp.pageToken
-                } while (distPageToken != null)
-                
-                val hr7d = mutableListOf<HeartRateRecord>()
-                var hrPageToken: String? = null
-                do {
-                    val resp = client.readRecords(
-                        ReadRecordsRequest(
-                            HeartRateRecord::class,
-                            timeRangeFilter = TimeRangeFilter.between(sevenDaysAgo, nowInstant),
-                            pageToken = hrPageToken
-                        )
-                    )
-                    hr7d.addAll(resp.records)
-                    hrPageToken = resp.pageToken
-                } while (hrPageToken != null)
-                
-                val spo27d = mutableListOf<OxygenSaturationRecord>()
-                var spo2PageToken: String? = null
-                do {
-                    val resp = client.readRecords(
-                        ReadRecordsRequest(
-                            OxygenSaturationRecord::class,
-                            timeRangeFilter = TimeRangeFilter.between(sevenDaysAgo, nowInstant),
-                            pageToken = spo2PageToken
-                        )
-                    )
-                    spo27d.addAll(resp.records)
-                    spo2PageToken = resp.pageToken
-                } while (spo2PageToken != null)
-
-                // Process Data
-                
-                val dailySteps = linkedMapOf<String, Long>()
-                val dailyDist = linkedMapOf<String, Double>()
-                val dailyHr = linkedMapOf<String, HrAgg>()
-                val dailySpo2 = linkedMapOf<String, Spo2Agg>()
-                
-                for (i in 0..6) {
-                    val day = endDate.minusDays(i.toLong()).toString()
-                    dailySteps[day] = 0L
-                    dailyDist[day] = 0.0
-                    dailyHr[day] = HrAgg()
-                    dailySpo2[day] = Spo2Agg()
-                }
-                
-                steps7d.forEach { r ->
-                    val day = java.time.LocalDateTime.ofInstant(r.endTime, zone).toLocalDate().toString()
-                    if (dailySteps.containsKey(day)) {
-                        dailySteps[day] = (dailySteps[day] ?: 0L) + r.count
-                    }
-                }
 
-                dist7d.forEach { r ->
-                    val day = java.time.LocalDateTime.ofInstant(r.endTime, zone).toLocalDate().toString()
-                    if (dailyDist.containsKey(day)) {
-                        dailyDist[day] = (dailyDist[day] ?: 0.0) + r.distance.inMeters
-                    }
-                }
-                
-                hr7d.forEach { rec ->
-                    rec.samples.forEach { s ->
-                        val day = java.time.LocalDateTime.ofInstant(s.time, zone).toLocalDate().toString()
-                        val bpm = s.beatsPerMinute.toLong()
-                        dailyHr[day]?.let { agg ->
-                            if (bpm < agg.min) agg.min = bpm
-                            if (bpm > agg.max) agg.max = bpm
-                            agg.sum += bpm
-                            agg.count += 1
-                        }
-                    }
-                }
-                
-                spo27d.forEach { r ->
-                    val day = java.time.LocalDateTime.ofInstant(r.time, zone).toLocalDate().toString()
-                    val pct = r.percentage.value
-                    dailySpo2[day]?.let { agg ->
-                        if (pct < agg.min) agg.min = pct
-                        if (pct > agg.max) agg.max = pct
-                        agg.sum += pct
-                        agg.count += 1
-                    }
-                }
-                
+                // Daily totals come straight from Health Connect's aggregation;
+                // raw records are only read by the upload path in syncChangesToServer()
+                val daily = HealthAggregates.daily(client, zone, endDate, 7)
+
                 // Store in ViewModel
-                viewModel.dailySteps = dailySteps
-                viewModel.dailyDist = dailyDist
-                viewModel.dailyHr = dailyHr
-                viewModel.dailySpo2 = dailySpo2
-                
-                viewModel.rawSteps = steps7d
-                viewModel.rawDist = dist7d
-                viewModel.rawHr = hr7d
-                viewModel.rawSpo2 = spo27d
-                
+                viewModel.dailySteps = daily.steps
+                viewModel.dailyDist = daily.distance
+                viewModel.dailyHr = daily.heartRate
+                viewModel.dailySpo2 = daily.spo2
+
                 withContext(Dispatchers.Main) {
                     renderCards()
                 }
-                
-                // Sync to server
-                val todayKey = endDate.toString()
-                val todaySteps = dailySteps[todayKey] ?: 0L
-                val todayDist = (dailyDist[todayKey] ?: 0.0).toLong()
-                val hrObj = dailyHr[todayKey]
-                val todayHr = if (hrObj != null && hrObj.count > 0) hrObj.sum / hrObj.count else 0L
-                val spo2Obj = dailySpo2[todayKey]
-                val todaySpo2 = if (spo2Obj != null && spo2Obj.count > 0) (spo2Obj.sum / spo2Obj.count).toInt() else 0
-                
-                // Log counts
-                withContext(Dispatchers.Main) {
-                    val msg = "Found: ${steps7d.size} steps, ${dist7d.size} dist, ${hr7d.size} hr, ${spo27d.size} spo2"
-                    android.util.Log.d("HomeFragment", msg)
-                    android.widget.Toast.makeText(requireContext(), msg, android.widget.Toast.LENGTH_LONG).show()
-                }
 
-                // Send only TODAY's records to reduce payload size and prevent 502 errors
-                val todayZone = java.time.ZoneId.systemDefault()
-                val todayDate = java.time.LocalDate.now(todayZone)
-                
-                val stepsTodayRecs = steps7d.filter { java.time.LocalDateTime.ofInstant(it.startTime, todayZone).toLocalDate() == todayDate }
-                val distTodayRecs = dist7d.filter { java.time.LocalDateTime.ofInstant(it.startTime, todayZone).toLocalDate() == todayDate }
-                val hrTodayRecs = hr7d.filter { java.time.LocalDateTime.ofInstant(it.startTime, todayZone).toLocalDate() == todayDate }
-                val spo2TodayRecs = spo27d.filter { java.time.LocalDateTime.ofInstant(it.time, todayZone).toLocalDate() == todayDate }
-
-                if (todaySteps > 0 || stepsTodayRecs.isNotEmpty() || distTodayRecs.isNotEmpty() || hrTodayRecs.isNotEmpty() || spo2TodayRecs.isNotEmpty()) {
-                    syncTodayToServer(todaySteps, todayDist, todayHr, todaySpo2, stepsTodayRecs, distTodayRecs, hrTodayRecs, spo2TodayRecs)
-                } else {
-                    withContext(Dispatchers.Main) {
-                        android.widget.Toast.makeText(requireContext(), "No new data to sync", android.widget.Toast.LENGTH_SHORT).show()
-                    }
-                }
+                // Sync to server
+                syncChangesToServer()
             }
         } catch (e: Exception) {
             withContext(Dispatchers.Main) {
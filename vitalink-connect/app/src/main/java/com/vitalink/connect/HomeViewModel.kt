@@ -1,9 +1,5 @@
 package com.vitalink.connect
 
-import androidx.health.connect.client.records.DistanceRecord
-import androidx.health.connect.client.records.HeartRateRecord
-import androidx.health.connect.client.records.OxygenSaturationRecord
-import androidx.health.connect.client.records.StepsRecord
 import androidx.lifecycle.ViewModel
 
 data class HrAgg(var min: Long = Long.MAX_VALUE, var max: Long = Long.MIN_VALUE, var sum: Long = 0L, var count: Int = 0)
@@ -16,14 +12,12 @@ class HomeViewModel : ViewModel() {
     var dailyHr: Map<String, HrAgg>? = null
     var dailySpo2: Map<String, Spo2Agg>? = null
     
-    // Raw records for hourly breakdown
-    var rawSteps: List<StepsRecord>? = null
-    var rawDist: List<DistanceRecord>? = null
-    var rawHr: List<HeartRateRecord>? = null
-    var rawSpo2: List<OxygenSaturationRecord>? = null
-    
     var statusSteps: Int? = null
     var statusDist: Int? = null
     var statusHr: Int? = null
     var statusSpo2: Int? = null
+
+    // finishedAt of the last SyncState.Done the summary was refetched for; the state flow
+    // replays it on every restart
+    var handledSyncDoneAt: Long = 0L
 }
\ No newline at end of file
@@ -3,109 +3,478 @@ package com.vitalink.connect
 import android.content.Context
 import androidx.room.Database
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import androidx.room.Dao
 import androidx.room.Insert
+import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.Transaction
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 
-@Entity(tableName = "pending_steps")
+// Timestamps are epoch millis and uid is an integer key (see PendingKeys), which keeps rows
+// small and makes the (patientId, ts) range scans integer comparisons. recordId and
+// lastModifiedMs are the Health Connect metadata.id / lastModifiedTime the row came from
+// ("" and 0 for rows queued before they were tracked).
+@Entity(tableName = "pending_steps", indices = [Index(value = ["patientId", "startTs"])])
 data class PendingSteps(
-    @PrimaryKey val recordUid: String,
+    @PrimaryKey val uid: Long,
     val patientId: String,
     val originId: String,
     val deviceId: String,
-    val startTs: String,
-    val endTs: String,
+    val startTs: Long,
+    val endTs: Long,
     val count: Long,
-    val tzOffsetMin: Int
+    val tzOffsetMin: Int,
+    val recordId: String,
+    val lastModifiedMs: Long
 )
 
-@Entity(tableName = "pending_hr")
+@Entity(tableName = "pending_hr", indices = [Index(value = ["patientId", "timeTs"])])
 data class PendingHr(
-    @PrimaryKey val recordUid: String,
+    @PrimaryKey val uid: Long,
     val patientId: String,
     val originId: String,
     val deviceId: String,
-    val timeTs: String,
+    val timeTs: Long,
     val bpm: Long,
-    val tzOffsetMin: Int
+    val tzOffsetMin: Int,
+    val recordId: String,
+    val lastModifiedMs: Long
 )
 
-@Entity(tableName = "pending_spo2")
+@Entity(tableName = "pending_spo2", indices = [Index(value = ["patientId", "timeTs"])])
 data class PendingSpo2(
-    @PrimaryKey val recordUid: String,
+    @PrimaryKey val uid: Long,
     val patientId: String,
     val originId: String,
     val deviceId: String,
-    val timeTs: String,
+    val timeTs: Long,
     val spo2Pct: Double,
-    val tzOffsetMin: Int
+    val tzOffsetMin: Int,
+    val recordId: String,
+    val lastModifiedMs: Long
 )
 
-@Entity(tableName = "pending_distance")
+@Entity(tableName = "pending_distance", indices = [Index(value = ["patientId", "startTs"])])
 data class PendingDistance(
-    @PrimaryKey val recordUid: String,
+    @PrimaryKey val uid: Long,
     val patientId: String,
     val originId: String,
     val deviceId: String,
-    val startTs: String,
-    val endTs: String,
+    val startTs: Long,
+    val endTs: Long,
     val meters: Long,
-    val tzOffsetMin: Int
+    val tzOffsetMin: Int,
+    val recordId: String,
+    val lastModifiedMs: Long
 )
 
+// Health Connect records the server has acknowledged, keyed by PendingKeys.recordKey and holding
+// the lastModifiedTime that was sent, so a re-read only uploads records that are new or edited.
+@Entity(tableName = "uploaded_record", indices = [Index(value = ["uploadedAt"])])
+data class UploadedRecord(
+    @PrimaryKey val recordKey: Long,
+    val lastModifiedMs: Long,
+    val uploadedAt: Long
+)
+
+object PendingKeys {
+    // 64-bit FNV-1a of kind|patientId|epochMillis: the server's legacy timestamp record_uid,
+    // stored as an integer (and therefore rowid) primary key
+    fun uid(kind: String, patientId: String, tsMillis: Long): Long = fnv("$kind|$patientId|$tsMillis")
+
+    // Pending-row identity for a Health Connect record: its metadata.id plus the sample time, so
+    // the samples of one HR record stay distinct and two apps writing at the same instant don't collide
+    fun uid(kind: String, patientId: String, recordId: String, tsMillis: Long): Long = fnv("$kind|$patientId|$recordId|$tsMillis")
+
+    fun recordKey(patientId: String, recordId: String): Long = fnv("record|$patientId|$recordId")
+
+    private fun fnv(text: String): Long {
+        var h = -0x340d631b7bdddcdbL
+        for (ch in text) {
+            h = h xor ch.code.toLong()
+            h *= 0x100000001b3L
+        }
+        return h
+    }
+
+    // Idempotency key of one upload: FNV-1a over every row (identity and value) and deleted id.
+    // A retry of the same batch gets the same key; a batch whose content changed gets a new one.
+    fun batchKey(patientId: String, batch: PendingBatch, deletedIds: Collection<String>): String {
+        var h = -0x340d631b7bdddcdbL
+        fun mix(v: Long) {
+            var x = v
+            repeat(8) {
+                h = h xor (x and 0xff)
+                h *= 0x100000001b3L
+                x = x ushr 8
+            }
+        }
+        fun mixString(s: String) = s.forEach { mix(it.code.toLong()) }
+        mixString(patientId)
+        batch.steps.forEach { mix(it.uid); mix(it.endTs); mix(it.count) }
+        batch.distance.forEach { mix(it.uid); mix(it.endTs); mix(it.meters) }
+        batch.hr.forEach { mix(it.uid); mix(it.bpm) }
+        batch.spo2.forEach { mix(it.uid); mix(it.spo2Pct.toRawBits()) }
+        deletedIds.sorted().forEach { mixString(it) }
+        return java.lang.Long.toHexString(h)
+    }
+}
+
+data class PendingBatch(
+    val steps: List<PendingSteps>,
+    val distance: List<PendingDistance>,
+    val hr: List<PendingHr>,
+    val spo2: List<PendingSpo2>
+) {
+    fun isEmpty() = steps.isEmpty() && distance.isEmpty() && hr.isEmpty() && spo2.isEmpty()
+
+    fun nextCursor(prev: PendingCursor) = PendingCursor(
+        steps.lastOrNull()?.let { Keyset(it.startTs, it.uid) } ?: prev.steps,
+        distance.lastOrNull()?.let { Keyset(it.startTs, it.uid) } ?: prev.distance,
+        hr.lastOrNull()?.let { Keyset(it.timeTs, it.uid) } ?: prev.hr,
+        spo2.lastOrNull()?.let { Keyset(it.timeTs, it.uid) } ?: prev.spo2
+    )
+}
+
+// Position of the last row handed out per table; the next page starts strictly after it
+data class Keyset(val ts: Long, val uid: Long)
+
+data class PendingCursor(
+    val steps: Keyset = START,
+    val distance: Keyset = START,
+    val hr: Keyset = START,
+    val spo2: Keyset = START
+) {
+    companion object {
+        val START = Keyset(Long.MIN_VALUE, Long.MIN_VALUE)
+    }
+}
+
 @Dao
-interface PendingDao {
+abstract class PendingDao {
     @Insert
-    suspend fun insertSteps(item: PendingSteps)
+    abstract suspend fun insertSteps(item: PendingSteps)
 
     @Insert
-    suspend fun insertHr(item: PendingHr)
+    abstract suspend fun insertHr(item: PendingHr)
 
     @Insert
-    suspend fun insertSpo2(item: PendingSpo2)
+    abstract suspend fun insertSpo2(item: PendingSpo2)
 
     @Insert
-    suspend fun insertDistance(item: PendingDistance)
+    abstract suspend fun insertDistance(item: PendingDistance)
+
+    // Re-queueing a record that is already pending replaces it, so an edit made in Health Connect
+    // before the first upload went out is sent with its new values
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    abstract suspend fun insertAllSteps(items: List<PendingSteps>)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    abstract suspend fun insertAllHr(items: List<PendingHr>)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    abstract suspend fun insertAllSpo2(items: List<PendingSpo2>)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    abstract suspend fun insertAllDistance(items: List<PendingDistance>)
+
+    // Keyset pages in time order; each is an index range scan on (patientId, ts) so the cost
+    // stays proportional to the page size however large the backlog gets.
+    @Query("SELECT * FROM pending_steps WHERE patientId = :patientId AND (startTs > :afterTs OR (startTs = :afterTs AND uid > :afterUid)) ORDER BY startTs, uid LIMIT :limit")
+    abstract suspend fun getSteps(patientId: String, afterTs: Long, afterUid: Long, limit: Int = 500): List<PendingSteps>
+
+    @Query("SELECT * FROM pending_hr WHERE patientId = :patientId AND (timeTs > :afterTs OR (timeTs = :afterTs AND uid > :afterUid)) ORDER BY timeTs, uid LIMIT :limit")
+    abstract suspend fun getHr(patientId: String, afterTs: Long, afterUid: Long, limit: Int = 1000): List<PendingHr>
+
+    @Query("SELECT * FROM pending_spo2 WHERE patientId = :patientId AND (timeTs > :afterTs OR (timeTs = :afterTs AND uid > :afterUid)) ORDER BY timeTs, uid LIMIT :limit")
+    abstract suspend fun getSpo2(patientId: String, afterTs: Long, afterUid: Long, limit: Int = 1000): List<PendingSpo2>
+
+    @Query("SELECT * FROM pending_distance WHERE patientId = :patientId AND (startTs > :afterTs OR (startTs = :afterTs AND uid > :afterUid)) ORDER BY startTs, uid LIMIT :limit")
+    abstract suspend fun getDistance(patientId: String, afterTs: Long, afterUid: Long, limit: Int = 500): List<PendingDistance>
+
+    @Query("DELETE FROM pending_steps WHERE uid IN (:uids)")
+    abstract suspend fun deleteSteps(uids: List<Long>)
+
+    @Query("DELETE FROM pending_hr WHERE uid IN (:uids)")
+    abstract suspend fun deleteHr(uids: List<Long>)
+
+    @Query("DELETE FROM pending_spo2 WHERE uid IN (:uids)")
+    abstract suspend fun deleteSpo2(uids: List<Long>)
+
+    @Query("DELETE FROM pending_distance WHERE uid IN (:uids)")
+    abstract suspend fun deleteDistance(uids: List<Long>)
+
+    @Query("DELETE FROM pending_hr WHERE patientId = :patientId AND recordId IN (:recordIds)")
+    abstract suspend fun deleteHrForRecords(patientId: String, recordIds: List<String>)
 
-    @Query("SELECT * FROM pending_steps LIMIT :limit")
-    suspend fun getSteps(limit: Int = 500): List<PendingSteps>
+    // One SQLite transaction for a whole sync run instead of one commit per row
+    @Transaction
+    open suspend fun enqueueSyncBatch(batch: PendingBatch) {
+        if (batch.steps.isNotEmpty()) insertAllSteps(batch.steps)
+        if (batch.distance.isNotEmpty()) insertAllDistance(batch.distance)
+        if (batch.hr.isNotEmpty()) {
+            // An edited HR record replaces its queued samples: ones it no longer has (fewer or
+            // moved samples get new uids) must not go up with the new version
+            batch.hr.groupBy { it.patientId }.forEach { (patientId, rows) ->
+                rows.map { it.recordId }.filter { it.isNotEmpty() }.distinct().chunked(500).forEach { deleteHrForRecords(patientId, it) }
+            }
+            insertAllHr(batch.hr)
+        }
+        if (batch.spo2.isNotEmpty()) insertAllSpo2(batch.spo2)
+    }
+
+    @Query("SELECT * FROM uploaded_record WHERE recordKey IN (:keys)")
+    abstract suspend fun getUploaded(keys: List<Long>): List<UploadedRecord>
 
-    @Query("SELECT * FROM pending_hr LIMIT :limit")
-    suspend fun getHr(limit: Int = 1000): List<PendingHr>
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    abstract suspend fun insertAllUploaded(items: List<UploadedRecord>)
 
-    @Query("SELECT * FROM pending_spo2 LIMIT :limit")
-    suspend fun getSpo2(limit: Int = 1000): List<PendingSpo2>
+    @Query("DELETE FROM uploaded_record WHERE uploadedAt < :before")
+    abstract suspend fun pruneUploaded(before: Long)
+
+    // recordKey -> lastModifiedMs of the version the server already has
+    open suspend fun uploadedVersions(keys: Collection<Long>): Map<Long, Long> {
+        val out = HashMap<Long, Long>(keys.size)
+        keys.distinct().chunked(DELETE_CHUNK).forEach { chunk ->
+            getUploaded(chunk).forEach { out[it.recordKey] = it.lastModifiedMs }
+        }
+        return out
+    }
+
+    // Drops an acknowledged batch from the queue and remembers which record versions it carried
+    @Transaction
+    open suspend fun ackBatch(patientId: String, batch: PendingBatch, now: Long) {
+        deleteBatch(batch)
+        val uploaded = HashMap<Long, UploadedRecord>()
+        fun mark(recordId: String, lastModifiedMs: Long) {
+            if (recordId.isEmpty()) return
+            val key = PendingKeys.recordKey(patientId, recordId)
+            uploaded[key] = UploadedRecord(key, lastModifiedMs, now)
+        }
+        batch.steps.forEach { mark(it.recordId, it.lastModifiedMs) }
+        batch.distance.forEach { mark(it.recordId, it.lastModifiedMs) }
+        batch.hr.forEach { mark(it.recordId, it.lastModifiedMs) }
+        batch.spo2.forEach { mark(it.recordId, it.lastModifiedMs) }
+        if (uploaded.isNotEmpty()) insertAllUploaded(uploaded.values.toList())
+    }
 
-    @Query("SELECT * FROM pending_distance LIMIT :limit")
-    suspend fun getDistance(limit: Int = 500): List<PendingDistance>
+    @Query("DELETE FROM pending_steps WHERE patientId != :patientId")
+    abstract suspend fun deleteStepsNotOf(patientId: String)
 
-    @Query("DELETE FROM pending_steps WHERE recordUid IN (:uids)")
-    suspend fun deleteSteps(uids: List<String>)
+    @Query("DELETE FROM pending_hr WHERE patientId != :patientId")
+    abstract suspend fun deleteHrNotOf(patientId: String)
 
-    @Query("DELETE FROM pending_hr WHERE recordUid IN (:uids)")
-    suspend fun deleteHr(uids: List<String>)
+    @Query("DELETE FROM pending_spo2 WHERE patientId != :patientId")
+    abstract suspend fun deleteSpo2NotOf(patientId: String)
 
-    @Query("DELETE FROM pending_spo2 WHERE recordUid IN (:uids)")
-    suspend fun deleteSpo2(uids: List<String>)
+    @Query("DELETE FROM pending_distance WHERE patientId != :patientId")
+    abstract suspend fun deleteDistanceNotOf(patientId: String)
 
-    @Query("DELETE FROM pending_distance WHERE recordUid IN (:uids)")
-    suspend fun deleteDistance(uids: List<String>)
+    @Transaction
+    open suspend fun claimNextBatch(
+        patientId: String,
+        after: PendingCursor = PendingCursor(),
+        stepsLimit: Int = 1000,
+        distanceLimit: Int = 1000,
+        hrLimit: Int = 6000,
+        spo2Limit: Int = 2000
+    ): PendingBatch {
+        return PendingBatch(
+            getSteps(patientId, after.steps.ts, after.steps.uid, stepsLimit),
+            getDistance(patientId, after.distance.ts, after.distance.uid, distanceLimit),
+            getHr(patientId, after.hr.ts, after.hr.uid, hrLimit),
+            getSpo2(patientId, after.spo2.ts, after.spo2.uid, spo2Limit)
+        )
+    }
+
+    // IN (...) lists are chunked to stay under SQLite's bound-variable limit (999 on older devices)
+    @Transaction
+    open suspend fun deleteBatch(batch: PendingBatch) {
+        batch.steps.map { it.uid }.chunked(DELETE_CHUNK).forEach { deleteSteps(it) }
+        batch.distance.map { it.uid }.chunked(DELETE_CHUNK).forEach { deleteDistance(it) }
+        batch.hr.map { it.uid }.chunked(DELETE_CHUNK).forEach { deleteHr(it) }
+        batch.spo2.map { it.uid }.chunked(DELETE_CHUNK).forEach { deleteSpo2(it) }
+    }
+
+    @Query(
+        "SELECT EXISTS(SELECT 1 FROM pending_steps WHERE patientId = :patientId) OR " +
+            "EXISTS(SELECT 1 FROM pending_distance WHERE patientId = :patientId) OR " +
+            "EXISTS(SELECT 1 FROM pending_hr WHERE patientId = :patientId) OR " +
+            "EXISTS(SELECT 1 FROM pending_spo2 WHERE patientId = :patientId)"
+    )
+    abstract suspend fun hasPending(patientId: String): Boolean
+
+    // Rows left behind by a previous login can't be uploaded under the current session
+    @Transaction
+    open suspend fun purgeOtherPatients(patientId: String) {
+        deleteStepsNotOf(patientId)
+        deleteDistanceNotOf(patientId)
+        deleteHrNotOf(patientId)
+        deleteSpo2NotOf(patientId)
+    }
+
+    companion object {
+        const val DELETE_CHUNK = 500
+    }
 }
 
-@Database(entities = [PendingSteps::class, PendingHr::class, PendingSpo2::class, PendingDistance::class], version = 2, exportSchema = false)
+@Database(entities = [PendingSteps::class, PendingHr::class, PendingSpo2::class, PendingDistance::class, UploadedRecord::class, PlannedAlarm::class], version = 6, exportSchema = false)
 abstract class LocalDb : RoomDatabase() {
     abstract fun dao(): PendingDao
+    abstract fun alarmPlan(): AlarmPlanDao
 
     companion object {
         @Volatile private var INSTANCE: LocalDb? = null
         fun get(context: Context): LocalDb = INSTANCE ?: synchronized(this) {
-            val inst = Room.databaseBuilder(context.applicationContext, LocalDb::class.java, "vitalink_local").fallbackToDestructiveMigration().build()
+            val inst = Room.databaseBuilder(context.applicationContext, LocalDb::class.java, "vitalink_local")
+                .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+                .addMigrations(MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6)
+                // v1 predates the outbox schema the migrations start from; its queue is rebuilt
+                // from Health Connect on the next full read
+                .fallbackToDestructiveMigrationFrom(1)
+                .addCallback(object : RoomDatabase.Callback() {
+                    override fun onOpen(db: SupportSQLiteDatabase) {
+                        // WAL only needs an fsync at checkpoints; a 2 MiB page cache covers a full drain batch
+                        db.query("PRAGMA synchronous = NORMAL").close()
+                        db.query("PRAGMA cache_size = -2048").close()
+                    }
+                })
+                .build()
             INSTANCE = inst
             inst
         }
+
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_pending_steps_patientId_startTs` ON `pending_steps` (`patientId`, `startTs`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_pending_hr_patientId_timeTs` ON `pending_hr` (`patientId`, `timeTs`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_pending_spo2_patientId_timeTs` ON `pending_spo2` (`patientId`, `timeTs`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_pending_distance_patientId_startTs` ON `pending_distance` (`patientId`, `startTs`)")
+            }
+        }
+
+        // ISO-8601 text timestamps and string uids -> epoch millis and PendingKeys.uid.
+        // Rows are copied rather than dropped so queued data survives the app update.
+        private val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                fun millis(iso: String?): Long? = try { java.time.Instant.parse(iso).toEpochMilli() } catch (_: Exception) { null }
+
+                db.execSQL("CREATE TABLE IF NOT EXISTS `pending_steps_new` (`uid` INTEGER NOT NULL, `patientId` TEXT NOT NULL, `originId` TEXT NOT NULL, `deviceId` TEXT NOT NULL, `startTs` INTEGER NOT NULL, `endTs` INTEGER NOT NULL, `count` INTEGER NOT NULL, `tzOffsetMin` INTEGER NOT NULL, PRIMARY KEY(`uid`))")
+                val steps = db.compileStatement("INSERT OR IGNORE INTO `pending_steps_new` VALUES (?, ?, ?, ?, ?, ?, ?, ?)")
+                db.query("SELECT patientId, originId, deviceId, startTs, endTs, count, tzOffsetMin FROM pending_steps").use { c ->
+                    while (c.moveToNext()) {
+                        val start = millis(c.getString(3)) ?: continue
+                        val end = millis(c.getString(4)) ?: start
+                        steps.bindLong(1, PendingKeys.uid("steps", c.getString(0), start))
+                        steps.bindString(2, c.getString(0))
+                        steps.bindString(3, c.getString(1))
+                        steps.bindString(4, c.getString(2))
+                        steps.bindLong(5, start)
+                        steps.bindLong(6, end)
+                        steps.bindLong(7, c.getLong(5))
+                        steps.bindLong(8, c.getLong(6))
+                        steps.executeInsert()
+                        steps.clearBindings()
+                    }
+                }
+                replaceTable(db, "pending_steps", "startTs")
+
+                db.execSQL("CREATE TABLE IF NOT EXISTS `pending_distance_new` (`uid` INTEGER NOT NULL, `patientId` TEXT NOT NULL, `originId` TEXT NOT NULL, `deviceId` TEXT NOT NULL, `startTs` INTEGER NOT NULL, `endTs` INTEGER NOT NULL, `meters` INTEGER NOT NULL, `tzOffsetMin` INTEGER NOT NULL, PRIMARY KEY(`uid`))")
+                val dist = db.compileStatement("INSERT OR IGNORE INTO `pending_distance_new` VALUES (?, ?, ?, ?, ?, ?, ?, ?)")
+                db.query("SELECT patientId, originId, deviceId, startTs, endTs, meters, tzOffsetMin FROM pending_distance").use { c ->
+                    while (c.moveToNext()) {
+                        val start = millis(c.getString(3)) ?: continue
+                        val end = millis(c.getString(4)) ?: start
+                        dist.bindLong(1, PendingKeys.uid("distance", c.getString(0), start))
+                        dist.bindString(2, c.getString(0))
+                        dist.bindString(3, c.getString(1))
+                        dist.bindString(4, c.getString(2))
+                        dist.bindLong(5, start)
+                        dist.bindLong(6, end)
+                        dist.bindLong(7, c.getLong(5))
+                        dist.bindLong(8, c.getLong(6))
+                        dist.executeInsert()
+                        dist.clearBindings()
+                    }
+                }
+                replaceTable(db, "pending_distance", "startTs")
+
+                db.execSQL("CREATE TABLE IF NOT EXISTS `pending_hr_new` (`uid` INTEGER NOT NULL, `patientId` TEXT NOT NULL, `originId` TEXT NOT NULL, `deviceId` TEXT NOT NULL, `timeTs` INTEGER NOT NULL, `bpm` INTEGER NOT NULL, `tzOffsetMin` INTEGER NOT NULL, PRIMARY KEY(`uid`))")
+                val hr = db.compileStatement("INSERT OR IGNORE INTO `pending_hr_new` VALUES (?, ?, ?, ?, ?, ?, ?)")
+                db.query("SELECT patientId, originId, deviceId, timeTs, bpm, tzOffsetMin FROM pending_hr").use { c ->
+                    while (c.moveToNext()) {
+                        val time = millis(c.getString(3)) ?: continue
+                        hr.bindLong(1, PendingKeys.uid("hr", c.getString(0), time))
+                        hr.bindString(2, c.getString(0))
+                        hr.bindString(3, c.getString(1))
+                        hr.bindString(4, c.getString(2))
+                        hr.bindLong(5, time)
+                        hr.bindLong(6, c.getLong(4))
+                        hr.bindLong(7, c.getLong(5))
+                        hr.executeInsert()
+                        hr.clearBindings()
+                    }
+                }
+                replaceTable(db, "pending_hr", "timeTs")
+
+                db.execSQL("CREATE TABLE IF NOT EXISTS `pending_spo2_new` (`uid` INTEGER NOT NULL, `patientId` TEXT NOT NULL, `originId` TEXT NOT NULL, `deviceId` TEXT NOT NULL, `timeTs` INTEGER NOT NULL, `spo2Pct` REAL NOT NULL, `tzOffsetMin` INTEGER NOT NULL, PRIMARY KEY(`uid`))")
+                val spo2 = db.compileStatement("INSERT OR IGNORE INTO `pending_spo2_new` VALUES (?, ?, ?, ?, ?, ?, ?)")
+                db.query("SELECT patientId, originId, deviceId, timeTs, spo2Pct, tzOffsetMin FROM pending_spo2").use { c ->
+                    while (c.moveToNext()) {
+                        val time = millis(c.getString(3)) ?: continue
+                        spo2.bindLong(1, PendingKeys.uid("spo2", c.getString(0), time))
+                        spo2.bindString(2, c.getString(0))
+                        spo2.bindString(3, c.getString(1))
+                        spo2.bindString(4, c.getString(2))
+                        spo2.bindLong(5, time)
+                        spo2.bindDouble(6, c.getDouble(4))
+                        spo2.bindLong(7, c.getLong(5))
+                        spo2.executeInsert()
+                        spo2.clearBindings()
+                    }
+                }
+                replaceTable(db, "pending_spo2", "timeTs")
+            }
+
+            private fun replaceTable(db: SupportSQLiteDatabase, table: String, tsColumn: String) {
+                db.execSQL("DROP TABLE `$table`")
+                db.execSQL("ALTER TABLE `${table}_new` RENAME TO `$table`")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_${table}_patientId_$tsColumn` ON `$table` (`patientId`, `$tsColumn`)")
+            }
+        }
+
+        // Health Connect record id / lastModifiedTime on pending rows, plus the uploaded_record index.
+        // Tables are rebuilt rather than ALTERed so the new columns carry no SQL default, matching the entities.
+        private val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                rebuild(db, "pending_steps", "startTs", "`startTs` INTEGER NOT NULL, `endTs` INTEGER NOT NULL, `count` INTEGER NOT NULL")
+                rebuild(db, "pending_distance", "startTs", "`startTs` INTEGER NOT NULL, `endTs` INTEGER NOT NULL, `meters` INTEGER NOT NULL")
+                rebuild(db, "pending_hr", "timeTs", "`timeTs` INTEGER NOT NULL, `bpm` INTEGER NOT NULL")
+                rebuild(db, "pending_spo2", "timeTs", "`timeTs` INTEGER NOT NULL, `spo2Pct` REAL NOT NULL")
+                db.execSQL("CREATE TABLE IF NOT EXISTS `uploaded_record` (`recordKey` INTEGER NOT NULL, `lastModifiedMs` INTEGER NOT NULL, `uploadedAt` INTEGER NOT NULL, PRIMARY KEY(`recordKey`))")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_uploaded_record_uploadedAt` ON `uploaded_record` (`uploadedAt`)")
+            }
+
+            private fun rebuild(db: SupportSQLiteDatabase, table: String, tsColumn: String, valueColumns: String) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `${table}_new` (`uid` INTEGER NOT NULL, `patientId` TEXT NOT NULL, `originId` TEXT NOT NULL, `deviceId` TEXT NOT NULL, $valueColumns, `tzOffsetMin` INTEGER NOT NULL, `recordId` TEXT NOT NULL, `lastModifiedMs` INTEGER NOT NULL, PRIMARY KEY(`uid`))")
+                db.execSQL("INSERT INTO `${table}_new` SELECT *, '', 0 FROM `$table`")
+                db.execSQL("DROP TABLE `$table`")
+                db.execSQL("ALTER TABLE `${table}_new` RENAME TO `$table`")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_${table}_patientId_$tsColumn` ON `$table` (`patientId`, `$tsColumn`)")
+            }
+        }
+
+        // alarm_plan (see AlarmPlanner); starts empty, so the first refresh registers every alarm
+        private val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `alarm_plan` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `planKey` TEXT NOT NULL, `fireAt` INTEGER NOT NULL, `repeatMs` INTEGER NOT NULL, `title` TEXT NOT NULL, `body` TEXT NOT NULL)")
+                db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_alarm_plan_planKey` ON `alarm_plan` (`planKey`)")
+            }
+        }
     }
 }
-
@@ -217,8 +217,7 @@ class LoginActivity : BaseActivity() {
                     .addHeader("Content-Type", "application/json")
                     .build()
 
-                val client = okhttp3.OkHttpClient()
-                client.newCall(request).execute()
+                VitalinkApplication.http(this@LoginActivity).newCall(request).execute().close()
             } catch (e: Exception) {
                 // Ignore errors - patient might already exist
             }
@@ -239,8 +238,7 @@ class LoginActivity : BaseActivity() {
                     .addHeader("Content-Type", "application/json")
                     .build()
 
-                val client = okhttp3.OkHttpClient()
-                client.newCall(request).execute()
+                VitalinkApplication.http(this@LoginActivity).newCall(request).execute().close()
             } catch (_: Exception) {
             }
         }
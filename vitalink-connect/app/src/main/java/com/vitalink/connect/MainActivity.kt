@@ -20,7 +20,6 @@ import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.RequestBody.Companion.toRequestBody
-import okhttp3.logging.HttpLoggingInterceptor
 import org.json.JSONObject
 
 class MainActivity : BaseActivity() {
@@ -66,14 +65,7 @@ class MainActivity : BaseActivity() {
         }
 
         // Initialize HTTP Client
-        val interceptor = HttpLoggingInterceptor()
-        interceptor.level = HttpLoggingInterceptor.Level.BASIC
-        http = OkHttpClient.Builder()
-            .addInterceptor(interceptor)
-            .connectTimeout(90, java.util.concurrent.TimeUnit.SECONDS)
-            .readTimeout(90, java.util.concurrent.TimeUnit.SECONDS)
-            .writeTimeout(90, java.util.concurrent.TimeUnit.SECONDS)
-            .build()
+        http = VitalinkApplication.bulkHttp(this)
         baseUrl = getString(R.string.api_base_url)
 
         try {
@@ -96,13 +88,15 @@ class MainActivity : BaseActivity() {
         android.util.Log.d("MainActivity", "Initializing background tasks - PatientId: $patientId, Session Valid: ${supabase.auth.currentSessionOrNull() != null}")
         try {
             ReminderScheduler.startSchedule(this)
+            SyncWorker.syncNow(this)
         } catch (e: Exception) {
             e.printStackTrace()
         }
 
         lifecycleScope.launch(Dispatchers.IO) {
             try {
-                ReminderScheduler.refresh(this@MainActivity, http, baseUrl, patientId)
+                SyncTriggers.refreshReminders(this@MainActivity)
+                SyncTriggers.dailyChecks(this@MainActivity)
             } catch (_: Exception) {}
         }
         
@@ -159,8 +159,7 @@ class RegisterActivity : AppCompatActivity() {
                     .addHeader("Content-Type", "application/json")
                     .build()
 
-                val client = okhttp3.OkHttpClient()
-                client.newCall(request).execute()
+                VitalinkApplication.http(this@RegisterActivity).newCall(request).execute().close()
             } catch (e: Exception) {
                 // Log error but don't block registration
                 android.util.Log.e("RegisterActivity", "Failed to create patient on server", e)
@@ -9,6 +9,8 @@ import java.util.Locale
 import java.util.Calendar
 import okhttp3.OkHttpClient
 import okhttp3.Request
+import okhttp3.Response
+import org.json.JSONArray
 import org.json.JSONObject
 
 object ReminderScheduler {
@@ -19,6 +21,9 @@ object ReminderScheduler {
         try { am.cancel(pi) } catch (_: Exception) {}
         val interval = AlarmManager.INTERVAL_HOUR // 1 hour for production
         am.setInexactRepeating(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + interval, interval, pi)
+
+        // Vitals sync is WorkManager's job so it can run to completion, at a cadence learned per device
+        SyncWorker.ensureScheduled(context)
         
         // Also schedule specific daily reminders
         scheduleDailyReminders(context)
@@ -27,7 +32,8 @@ object ReminderScheduler {
     fun scheduleDailyReminders(context: Context) {
         val sp = context.getSharedPreferences("vitalink_daily_checks", Context.MODE_PRIVATE)
         val am = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
-        val intent = Intent(context, SyncReceiver::class.java)
+        // Only the daily notification check runs on these; reminders refresh on the hourly alarm
+        val intent = Intent(context, SyncReceiver::class.java).setAction(SyncReceiver.ACTION_DAILY_CHECK)
 
         val reminders = listOf(
             Triple(1001, "reminder_time_morning", "reminder_minute_morning"),
@@ -53,130 +59,216 @@ object ReminderScheduler {
                 }
             }
 
+            // Earlier versions registered these without an action, which ran the full refresh
+            val legacy = PendingIntent.getBroadcast(context, reqCode, Intent(context, SyncReceiver::class.java), PendingIntent.FLAG_NO_CREATE or PendingIntent.FLAG_IMMUTABLE)
+            if (legacy != null) {
+                try { am.cancel(legacy) } catch (_: Exception) {}
+                legacy.cancel()
+            }
+
             val pi = PendingIntent.getBroadcast(context, reqCode, intent, PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE)
             try { am.cancel(pi) } catch (_: Exception) {}
             am.setRepeating(AlarmManager.RTC_WAKEUP, calendar.timeInMillis, AlarmManager.INTERVAL_DAY, pi)
         }
     }
 
+    // One /patient/device-state request per wakeup; servers without it get the separate
+    // reminders and medications requests.
     fun refresh(context: Context, http: OkHttpClient, baseUrl: String, patientId: String) {
-        val url = baseUrl + "/patient/reminders?patientId=" + java.net.URLEncoder.encode(patientId, "UTF-8")
-        
         val spToken = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE)
         val token = spToken.getString("supabaseAccessToken", "") ?: ""
 
-        // Check time for Daily Notifications (9am, 3pm, 9pm MYT)
-        checkDailyNotifications(context, http, baseUrl, patientId, token)
+        if (refreshFromDeviceState(context, http, baseUrl, patientId, token)) return
 
-        val sp = context.getSharedPreferences("vitalink_reminders", Context.MODE_PRIVATE)
-        val seenIds = sp.getStringSet("seen_ids", emptySet())?.toMutableSet() ?: mutableSetOf()
-        var idsChanged = false
+        try {
+            val url = baseUrl + "/patient/reminders?patientId=" + java.net.URLEncoder.encode(patientId, "UTF-8")
+            http.newCall(authorizedGet(url, token)).execute().use {
+                if (it.code == 200 && !unchangedSinceBoot(context, it, "appt")) {
+                    val arr = JSONObject(it.body?.string() ?: "{}").optJSONArray("reminders") ?: return@use
+                    planAppointments(context, (0 until arr.length()).map { i -> arr.getJSONObject(i) })
+                }
+            }
+        } catch (_: Exception) {}
 
         try {
-            val reqBuilder = Request.Builder().url(url).get()
-            if (token.isNotEmpty()) {
-                reqBuilder.header("Authorization", "Bearer $token")
+            val url = baseUrl + "/patient/medications?patientId=" + java.net.URLEncoder.encode(patientId, "UTF-8")
+            http.newCall(authorizedGet(url, token)).execute().use {
+                if (it.code == 200 && !unchangedSinceBoot(context, it, "med")) {
+                    val obj = JSONObject(it.body?.string() ?: "{}")
+                    planMedications(context, obj.optJSONObject("preferences") ?: JSONObject())
+                }
             }
-            val req = reqBuilder.build()
-            val resp = http.newCall(req).execute()
-            resp.use {
-                if (it.code != 200) return
-                val body = it.body?.string() ?: return
-                val obj = JSONObject(body)
-                val arr = obj.optJSONArray("reminders") ?: return
-                for (i in 0 until arr.length()) {
-                    val r = arr.getJSONObject(i)
-                    val id = r.optString("id")
-                    val title = r.optString("title")
-                    val dateStr = r.optString("date")
-                    val t: Long? = try {
-                        if (android.os.Build.VERSION.SDK_INT >= 26) {
-                            try {
-                                java.time.OffsetDateTime.parse(dateStr).toInstant().toEpochMilli()
-                            } catch (_: Exception) {
-                                java.time.Instant.parse(dateStr).toEpochMilli()
-                            }
-                        } else {
-                            // Fallback for older devices (basic ISO8601)
-                            try {
-                                val sdf = java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US)
-                                sdf.parse(dateStr)?.time
-                            } catch (_: Exception) { null }
-                        }
-                    } catch (_: Exception) { null }
-                    if (t != null) {
-                        // Check if the appointment is in the future
-                        val nowMs = System.currentTimeMillis()
-                        val isFuture = t > nowMs
-                        
-                        // If it's a new ID we haven't seen before, AND it is in the future, notify user
-                        if (!seenIds.contains(id) && isFuture) {
-                            val date = java.util.Date(t)
-                            val fmt = java.text.SimpleDateFormat("dd/MM h:mma", Locale.getDefault())
-                            val dStr = fmt.format(date)
-                            val intent = Intent(context, ReminderReceiver::class.java)
-                            intent.putExtra("title", "New Appointment")
-                            intent.putExtra("body", "$title on $dStr")
-                            context.sendBroadcast(intent)
-                            seenIds.add(id)
-                            idsChanged = true
+        } catch (_: Exception) {}
+    }
+
+    // A 404 means the server predates /patient/device-state; it isn't asked again for this long
+    private const val DEVICE_STATE_UNSUPPORTED_TTL_MS = 24 * 60 * 60 * 1000L
+
+    // Returns false when the server has no device-state endpoint (or the request failed), so the
+    // caller falls back. Reminders arrive as changes since the stored cursor and are merged into
+    // a local copy; reminder_ids drops the ones deleted on the server.
+    private fun refreshFromDeviceState(context: Context, http: OkHttpClient, baseUrl: String, patientId: String, token: String): Boolean {
+        val sp = context.getSharedPreferences("vitalink_reminders", Context.MODE_PRIVATE)
+        if (System.currentTimeMillis() - sp.getLong("device_state_unsupported_at", 0L) < DEVICE_STATE_UNSUPPORTED_TTL_MS) return false
+        val samePatient = sp.getString("device_state_patient", null) == patientId
+        val cursor = if (samePatient) sp.getString("device_state_cursor", null) else null
+        var url = baseUrl + "/patient/device-state?patientId=" + java.net.URLEncoder.encode(patientId, "UTF-8") +
+            "&date=" + todayMyt()
+        if (cursor != null) url += "&since=" + java.net.URLEncoder.encode(cursor, "UTF-8")
+
+        try {
+            http.newCall(authorizedGet(url, token)).execute().use {
+                if (it.code == 404) sp.edit().putLong("device_state_unsupported_at", System.currentTimeMillis()).apply()
+                if (it.code != 200) return false
+                val obj = JSONObject(it.body?.string() ?: "{}")
+
+                obj.optJSONObject("daily_status")?.let { status -> storeDailyStatus(context, status) }
+                obj.optJSONObject("sync_limits")?.let { limits ->
+                    // Stands in for the /patient/sync-capabilities fetch, encodings included
+                    SyncCapabilities.store(context, limits)
+                    limits.optJSONArray("encodings")?.let { enc ->
+                        val names = (0 until enc.length()).map { i -> enc.optString(i) }
+                        HealthSyncManager.rememberEncodings(context, 200, names.joinToString(","))
+                    }
+                }
+
+                if (!unchangedSinceBoot(context, it, "appt")) {
+                    val known = LinkedHashMap<String, JSONObject>()
+                    if (cursor != null) {
+                        val cached = JSONArray(sp.getString("device_state_reminders", "[]") ?: "[]")
+                        for (i in 0 until cached.length()) {
+                            val r = cached.getJSONObject(i)
+                            known[r.optString("id")] = r
                         }
-                        
-                        // Always try to schedule (scheduleFor handles future checks for reminders)
-                        // If the date changed to future, scheduleFor will set the alarms correctly.
-                        scheduleFor(context, id, title, t)
                     }
+                    val changed = obj.optJSONArray("reminders") ?: JSONArray()
+                    for (i in 0 until changed.length()) {
+                        val r = changed.getJSONObject(i)
+                        known[r.optString("id")] = r
+                    }
+                    obj.optJSONArray("reminder_ids")?.let { ids ->
+                        val current = (0 until ids.length()).map { i -> ids.getString(i) }.toSet()
+                        known.keys.retainAll(current)
+                    }
+                    planAppointments(context, known.values.toList())
+                    sp.edit()
+                        .putString("device_state_patient", patientId)
+                        .putString("device_state_cursor", if (obj.isNull("cursor")) null else obj.optString("cursor"))
+                        .putString("device_state_reminders", JSONArray(known.values).toString())
+                        .apply()
+                }
+
+                val meds = obj.optJSONObject("medications")
+                if (meds != null && !unchangedSinceBoot(context, it, "med")) {
+                    planMedications(context, meds)
                 }
             }
-        } catch (_: Exception) {}
-        
-        if (idsChanged) {
-            sp.edit().putStringSet("seen_ids", seenIds).apply()
+            return true
+        } catch (e: Exception) {
+            e.printStackTrace()
+            return false
         }
+    }
 
-        try {
-            val reqBuilder = Request.Builder().url(baseUrl + "/patient/medications?patientId=" + java.net.URLEncoder.encode(patientId, "UTF-8")).get()
-            if (token.isNotEmpty()) {
-                reqBuilder.header("Authorization", "Bearer $token")
-            }
-            val req = reqBuilder.build()
-            val resp = http.newCall(req).execute()
-            resp.use {
-                if (it.code == 200) {
-                    val body = it.body?.string() ?: "{}"
-                    val obj = JSONObject(body)
-                    val prefs = obj.optJSONObject("preferences") ?: JSONObject()
-                    val hour = prefs.optInt("notify_hour", 12)
-                    
-                    // Cancel old individual alarms
-                    cancelDaily(context, 11001)
-                    cancelDaily(context, 11002)
-                    cancelDaily(context, 11003)
-                    cancelDaily(context, 11004)
-
-                    val noonMeds = mutableListOf<String>()
-                    if (prefs.optBoolean("beta_blockers", false)) noonMeds.add("Beta blockers")
-                    if (prefs.optBoolean("raas_inhibitors", false)) noonMeds.add("RAAS inhibitors")
-                    if (prefs.optBoolean("mras", false)) noonMeds.add("MRAs")
-                    if (prefs.optBoolean("sglt2_inhibitors", false)) noonMeds.add("SGLT2 inhibitors")
-
-                    if (noonMeds.isNotEmpty()) {
-                        val title = "Time for medications: " + noonMeds.joinToString(", ")
-                        scheduleDaily(context, 11000, title, 12) // Fixed at 12:00 PM
-                    } else {
-                        cancelDaily(context, 11000)
-                    }
+    private fun authorizedGet(url: String, token: String): Request {
+        val reqBuilder = Request.Builder().url(url).get()
+        if (token.isNotEmpty()) {
+            reqBuilder.header("Authorization", "Bearer $token")
+        }
+        return reqBuilder.build()
+    }
 
-                    if (prefs.optBoolean("statin", false)) {
-                        scheduleDaily(context, 11005, "Time for Statin medication", 22) // Fixed at 10:00 PM
-                    } else {
-                        cancelDaily(context, 11005)
+    // Reminders as {id, title, date}: notifies about new future appointments and brings the
+    // appointment alarms in line with the full list
+    private fun planAppointments(context: Context, reminders: List<JSONObject>) {
+        val sp = context.getSharedPreferences("vitalink_reminders", Context.MODE_PRIVATE)
+        val seenIds = sp.getStringSet("seen_ids", emptySet())?.toMutableSet() ?: mutableSetOf()
+        var idsChanged = false
+        val appointmentAlarms = ArrayList<AlarmPlanner.Desired>()
+
+        for (r in reminders) {
+            val id = r.optString("id")
+            val title = r.optString("title")
+            val dateStr = r.optString("date")
+            val t: Long? = try {
+                if (android.os.Build.VERSION.SDK_INT >= 26) {
+                    try {
+                        java.time.OffsetDateTime.parse(dateStr).toInstant().toEpochMilli()
+                    } catch (_: Exception) {
+                        java.time.Instant.parse(dateStr).toEpochMilli()
                     }
+                } else {
+                    // Fallback for older devices (basic ISO8601)
+                    try {
+                        val sdf = java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US)
+                        sdf.parse(dateStr)?.time
+                    } catch (_: Exception) { null }
+                }
+            } catch (_: Exception) { null }
+            if (t != null) {
+                // Check if the appointment is in the future
+                val nowMs = System.currentTimeMillis()
+                val isFuture = t > nowMs
+
+                // If it's a new ID we haven't seen before, AND it is in the future, notify user
+                if (!seenIds.contains(id) && isFuture) {
+                    val date = java.util.Date(t)
+                    val fmt = java.text.SimpleDateFormat("dd/MM h:mma", Locale.getDefault())
+                    val dStr = fmt.format(date)
+                    val intent = Intent(context, ReminderReceiver::class.java)
+                    intent.putExtra("title", "New Appointment")
+                    intent.putExtra("body", "$title on $dStr")
+                    context.sendBroadcast(intent)
+                    seenIds.add(id)
+                    idsChanged = true
                 }
+
+                // Past offsets are left out, so their alarms drop out of the plan
+                appointmentAlarms.addAll(alarmsFor(id, title, t))
             }
-        } catch (_: Exception) {}
+        }
+        if (!sp.getBoolean("legacy_cleared_appt", false)) {
+            cancelLegacyAppointmentAlarms(context, reminders.map { it.optString("id") })
+            sp.edit().putBoolean("legacy_cleared_appt", true).apply()
+        }
+        AlarmPlanner.apply(context, "appt", appointmentAlarms)
+
+        if (idsChanged) {
+            sp.edit().putStringSet("seen_ids", seenIds).apply()
+        }
+    }
+
+    private fun planMedications(context: Context, prefs: JSONObject) {
+        val sp = context.getSharedPreferences("vitalink_reminders", Context.MODE_PRIVATE)
+        // Medication alarms of earlier versions used fixed request codes 11000..11005
+        if (!sp.getBoolean("legacy_cleared_med", false)) {
+            for (code in 11000..11005) cancelDaily(context, code)
+            sp.edit().putBoolean("legacy_cleared_med", true).apply()
+        }
+
+        val medAlarms = ArrayList<AlarmPlanner.Desired>()
+        val noonMeds = mutableListOf<String>()
+        if (prefs.optBoolean("beta_blockers", false)) noonMeds.add("Beta blockers")
+        if (prefs.optBoolean("raas_inhibitors", false)) noonMeds.add("RAAS inhibitors")
+        if (prefs.optBoolean("mras", false)) noonMeds.add("MRAs")
+        if (prefs.optBoolean("sglt2_inhibitors", false)) noonMeds.add("SGLT2 inhibitors")
+
+        if (noonMeds.isNotEmpty()) {
+            val title = "Time for medications: " + noonMeds.joinToString(", ")
+            medAlarms.add(dailyAlarm("med|noon", title, 12)) // Fixed at 12:00 PM
+        }
+
+        if (prefs.optBoolean("statin", false)) {
+            medAlarms.add(dailyAlarm("med|statin", "Time for Statin medication", 22)) // Fixed at 10:00 PM
+        }
+        AlarmPlanner.apply(context, "med", medAlarms)
     }
 
+    // OkHttp answers a 304 with the cached body. If nothing changed and the plan built from that
+    // body was applied during this boot (alarms don't survive a reboot), there's nothing to redo.
+    private fun unchangedSinceBoot(context: Context, resp: Response, scope: String): Boolean =
+        resp.networkResponse?.code == 304 && AlarmPlanner.appliedThisBoot(context, scope)
+
     fun sendTestNotifications(context: Context, patientId: String) {
         val base = context.getString(R.string.web_app_url).removeSuffix("/")
         val selfCheckUrl = "$base/self-check?patientId=" + java.net.URLEncoder.encode(patientId, "UTF-8")
@@ -197,17 +289,16 @@ object ReminderScheduler {
         }
     }
 
-    private fun checkDailyNotifications(context: Context, http: OkHttpClient, baseUrl: String, patientId: String, token: String) {
+    // Daily Notifications (morning and afternoon MYT); each is sent at most once per day
+    fun checkDailyNotifications(context: Context, http: OkHttpClient, baseUrl: String, patientId: String) {
+        val token = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE).getString("supabaseAccessToken", "") ?: ""
         val sp = context.getSharedPreferences("vitalink_daily_checks", Context.MODE_PRIVATE)
         
         // Use Calendar for compatibility
         val cal = Calendar.getInstance(java.util.TimeZone.getTimeZone("Asia/Kuala_Lumpur"))
         val currentHour = cal.get(Calendar.HOUR_OF_DAY)
         val currentMinute = cal.get(Calendar.MINUTE)
-        val year = cal.get(Calendar.YEAR)
-        val month = cal.get(Calendar.MONTH) + 1
-        val day = cal.get(Calendar.DAY_OF_MONTH)
-        val todayStr = String.format(Locale.US, "%04d-%02d-%02d", year, month, day)
+        val todayStr = todayMyt()
 
         fun isTimePassed(targetHour: Int, targetMinute: Int): Boolean {
             if (currentHour > targetHour) return true
@@ -225,7 +316,7 @@ object ReminderScheduler {
         val afternoonHour = sp.getInt("reminder_time_afternoon", 15)
         val afternoonMinute = sp.getInt("reminder_minute_afternoon", 0)
         if (isTimePassed(afternoonHour, afternoonMinute) && !sp.getBoolean("notified_afternoon_$todayStr", false)) {
-            val status = getDailyStatus(http, baseUrl, patientId, token, todayStr)
+            val status = cachedDailyStatus(context, todayStr) ?: getDailyStatus(http, baseUrl, patientId, token, todayStr)
             val baseWeb = context.getString(R.string.web_app_url).removeSuffix("/")
             if (!status.hasWeight) {
                 val url = "$baseWeb/self-check?patientId=" + java.net.URLEncoder.encode(patientId, "UTF-8")
@@ -260,6 +351,30 @@ object ReminderScheduler {
     }
 
     private data class DailyStatus(val hasWeight: Boolean, val hasBp: Boolean, val hasSymptoms: Boolean)
+
+    // A status older than this (e.g. on a daily-check-only wakeup) is fetched again
+    private const val DAILY_STATUS_MAX_AGE_MS = 30 * 60 * 1000L
+
+    private fun todayMyt(): String {
+        val cal = Calendar.getInstance(java.util.TimeZone.getTimeZone("Asia/Kuala_Lumpur"))
+        return String.format(Locale.US, "%04d-%02d-%02d", cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH))
+    }
+
+    private fun storeDailyStatus(context: Context, status: JSONObject) {
+        context.getSharedPreferences("vitalink_daily_checks", Context.MODE_PRIVATE).edit()
+            .putString("status_json", status.toString())
+            .putLong("status_fetched_at", System.currentTimeMillis())
+            .apply()
+    }
+
+    // The status the last device-state response carried for [dateStr], if it is recent enough
+    private fun cachedDailyStatus(context: Context, dateStr: String): DailyStatus? {
+        val sp = context.getSharedPreferences("vitalink_daily_checks", Context.MODE_PRIVATE)
+        if (System.currentTimeMillis() - sp.getLong("status_fetched_at", 0L) > DAILY_STATUS_MAX_AGE_MS) return null
+        val json = try { JSONObject(sp.getString("status_json", null) ?: return null) } catch (_: Exception) { return null }
+        if (json.optString("date") != dateStr) return null
+        return DailyStatus(json.optBoolean("has_weight"), json.optBoolean("has_bp"), json.optBoolean("has_symptoms"))
+    }
     private fun getDailyStatus(http: OkHttpClient, baseUrl: String, patientId: String, token: String, dateStr: String): DailyStatus {
         try {
             val url = "$baseUrl/patient/daily-status?patientId=$patientId&date=$dateStr"
@@ -324,54 +439,36 @@ object ReminderScheduler {
         nm.notify(requestCode, n)
     }
 
-    private fun scheduleFor(context: Context, id: String, title: String, eventMs: Long) {
-        val am = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
+    private val appointmentOffsets = listOf(
+        24 * 60 * 60 * 1000L to "Appointment tomorrow",
+        60 * 60 * 1000L to "Appointment in 1 hour",
+        5 * 60 * 1000L to "Appointment in 5 minutes",
+        0L to "Appointment now"
+    )
+
+    private fun alarmsFor(id: String, title: String, eventMs: Long): List<AlarmPlanner.Desired> {
         val now = System.currentTimeMillis()
-        
+
         val date = java.util.Date(eventMs)
         val fmt = java.text.SimpleDateFormat("dd/MM h:mma", Locale.getDefault())
         val dStr = fmt.format(date)
         val body = "$title on $dStr"
 
-        val pairs = listOf(
-            24 * 60 * 60 * 1000L to "Appointment tomorrow",
-            60 * 60 * 1000L to "Appointment in 1 hour",
-            5 * 60 * 1000L to "Appointment in 5 minutes",
-            0L to "Appointment now"
-        )
-        for ((offset, prefix) in pairs) {
-            val fireAt = eventMs - offset
-            if (fireAt > now) {
-                val pi = pending(context, id + "|" + offset, prefix, body)
-                try { am.cancel(pi) } catch (_: Exception) {}
-                setExact(am, fireAt, pi)
-            }
-        }
-    }
-
-    private fun pending(context: Context, key: String, prefix: String, title: String): PendingIntent {
-        val intent = Intent(context, ReminderReceiver::class.java)
-        intent.putExtra("title", prefix)
-        intent.putExtra("body", title)
-        val req = key.hashCode()
-        return PendingIntent.getBroadcast(context, req, intent, PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE)
+        return appointmentOffsets
+            .filter { (offset, _) -> eventMs - offset > now }
+            .map { (offset, prefix) -> AlarmPlanner.Desired("appt|$id|$offset", eventMs - offset, 0L, prefix, body) }
     }
 
-    private fun setExact(am: AlarmManager, whenMs: Long, pi: PendingIntent) {
-        try {
-            if (android.os.Build.VERSION.SDK_INT >= 31) {
-                if (am.canScheduleExactAlarms()) {
-                    am.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
-                } else {
-                    am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
-                }
-            } else {
-                am.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
+    // Appointment alarms of earlier versions, keyed by (id|offset).hashCode() without an action
+    private fun cancelLegacyAppointmentAlarms(context: Context, ids: List<String>) {
+        val am = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
+        for (id in ids) {
+            for ((offset, _) in appointmentOffsets) {
+                val intent = Intent(context, ReminderReceiver::class.java)
+                val pi = PendingIntent.getBroadcast(context, (id + "|" + offset).hashCode(), intent, PendingIntent.FLAG_NO_CREATE or PendingIntent.FLAG_IMMUTABLE) ?: continue
+                try { am.cancel(pi) } catch (_: Exception) {}
+                pi.cancel()
             }
-        } catch (e: Exception) {
-            try {
-                am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, whenMs, pi)
-            } catch (_: Exception) {}
         }
     }
 
@@ -383,18 +480,14 @@ object ReminderScheduler {
         pi.cancel()
     }
 
-    private fun scheduleDaily(context: Context, requestCode: Int, title: String, hour: Int) {
-        val am = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
-        val intent = Intent(context, ReminderReceiver::class.java)
-        intent.putExtra("title", title)
-        val pi = PendingIntent.getBroadcast(context, requestCode, intent, PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE)
-        try { am.cancel(pi) } catch (_: Exception) {}
+    private fun dailyAlarm(planKey: String, title: String, hour: Int): AlarmPlanner.Desired {
         val cal = java.util.Calendar.getInstance()
         cal.set(java.util.Calendar.HOUR_OF_DAY, hour)
         cal.set(java.util.Calendar.MINUTE, 0)
         cal.set(java.util.Calendar.SECOND, 0)
+        cal.set(java.util.Calendar.MILLISECOND, 0)
         if (cal.timeInMillis < System.currentTimeMillis()) cal.add(java.util.Calendar.DAY_OF_YEAR, 1)
-        am.setRepeating(AlarmManager.RTC_WAKEUP, cal.timeInMillis, AlarmManager.INTERVAL_DAY, pi)
+        return AlarmPlanner.Desired(planKey, cal.timeInMillis, AlarmManager.INTERVAL_DAY, title)
     }
 }
 
@@ -84,7 +84,10 @@ class SettingsActivity : BaseActivity() {
 
             findViewById<android.view.View>(R.id.btnLogout)?.setOnClickListener {
                 val sp = getSharedPreferences("vitalink", MODE_PRIVATE)
+                // The next sign-in starts from a full read rather than this account's change tokens
+                sp.getString("patientId", null)?.let { HealthChangesReader.reset(this, it) }
                 sp.edit().clear().apply()
+                SyncWorker.cancelAll(this)
                 
                 Toast.makeText(this, "Logged out", Toast.LENGTH_SHORT).show()
                 
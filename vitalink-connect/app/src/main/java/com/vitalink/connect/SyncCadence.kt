@@ -0,0 +1,64 @@
+package com.vitalink.connect
+
+import android.content.Context
+
+// Picks the delay until the next background sync from how fast this device has been producing
+// Health Connect samples. Every sync adds the new samples it read; each periodic run turns the
+// total since the previous one into a smoothed samples-per-hour rate that sets the next interval
+// so a sync picks up about TARGET_RECORDS samples, and periodic runs that find nothing double the
+// interval. Kept in prefs, so a reboot resumes the learned cadence.
+object SyncCadence {
+    private const val PREFS = "vitalink_sync_cadence"
+    private const val KEY_LAST_AT = "lastSyncAt"
+    private const val KEY_RATE = "recordsPerHour"
+    private const val KEY_INTERVAL = "intervalMs"
+    private const val KEY_PENDING = "samplesSinceLast"
+
+    private const val HOUR_MS = 60 * 60 * 1000L
+    const val MIN_INTERVAL_MS = 30 * 60 * 1000L
+    const val MAX_INTERVAL_MS = 6 * HOUR_MS
+    const val DEFAULT_INTERVAL_MS = HOUR_MS
+
+    // A watch writing a few samples a minute reaches this in well under an hour
+    private const val TARGET_RECORDS = 120.0
+    // Weight of the newest observation in the smoothed rate
+    private const val ALPHA = 0.3
+
+    fun intervalMs(context: Context): Long =
+        prefs(context).getLong(KEY_INTERVAL, DEFAULT_INTERVAL_MS).coerceIn(MIN_INTERVAL_MS, MAX_INTERVAL_MS)
+
+    // Called after every Health Connect read, whoever started it, with its incremental sample count
+    @Synchronized
+    fun observe(context: Context, samples: Int) {
+        if (samples <= 0) return
+        val sp = prefs(context)
+        sp.edit().putLong(KEY_PENDING, sp.getLong(KEY_PENDING, 0L) + samples).apply()
+    }
+
+    // Called by the periodic sync only, after its read
+    @Synchronized
+    fun record(context: Context, at: Long = System.currentTimeMillis()) {
+        val sp = prefs(context)
+        val lastAt = sp.getLong(KEY_LAST_AT, 0L)
+        val records = sp.getLong(KEY_PENDING, 0L)
+        val editor = sp.edit().putLong(KEY_LAST_AT, at).putLong(KEY_PENDING, 0L)
+        // The first read has no window to measure a rate over
+        if (lastAt <= 0L || at <= lastAt) {
+            editor.apply()
+            return
+        }
+        val hours = (at - lastAt).toDouble() / HOUR_MS
+        val rate = ALPHA * (records / hours) + (1 - ALPHA) * sp.getFloat(KEY_RATE, 0f)
+        val previous = intervalMs(context)
+        val next = if (records == 0L) {
+            previous * 2
+        } else {
+            (TARGET_RECORDS / rate * HOUR_MS).toLong()
+        }
+        editor.putFloat(KEY_RATE, rate.toFloat())
+            .putLong(KEY_INTERVAL, next.coerceIn(MIN_INTERVAL_MS, MAX_INTERVAL_MS))
+            .apply()
+    }
+
+    private fun prefs(context: Context) = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+}
@@ -0,0 +1,63 @@
+package com.vitalink.connect
+
+import android.content.Context
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import org.json.JSONObject
+
+// Upload size limits for /patient/sync-batch. maxBodyBytes is measured on the uncompressed JSON,
+// so a chunk under it also fits when gzip is unavailable.
+data class SyncLimits(val maxBodyBytes: Long, val maxSamples: Int)
+
+// Reads the limits the server advertises at /patient/sync-capabilities (also carried by
+// /patient/device-state) and keeps them in prefs, refetched at most every few hours. Servers
+// without the endpoint get the defaults.
+object SyncCapabilities {
+    private const val PATH = "/patient/sync-capabilities"
+    private const val MAX_AGE_MS = 6 * 60 * 60 * 1000L
+    private const val PREF_BYTES = "syncMaxBodyBytes"
+    private const val PREF_SAMPLES = "syncMaxSamples"
+    private const val PREF_FETCHED = "syncLimitsFetchedAt"
+
+    val DEFAULT = SyncLimits(maxBodyBytes = 512 * 1024L, maxSamples = 8000)
+
+    suspend fun limits(context: Context, http: OkHttpClient): SyncLimits {
+        val sp = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE)
+        if (System.currentTimeMillis() - sp.getLong(PREF_FETCHED, 0L) > MAX_AGE_MS) {
+            fetch(context, http)
+        }
+        return SyncLimits(
+            maxBodyBytes = sp.getLong(PREF_BYTES, DEFAULT.maxBodyBytes),
+            maxSamples = sp.getInt(PREF_SAMPLES, DEFAULT.maxSamples)
+        )
+    }
+
+    // {max_body_bytes, max_samples}; missing or zero values fall back to the defaults
+    fun store(context: Context, obj: JSONObject) {
+        val editor = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE).edit()
+            .putLong(PREF_FETCHED, System.currentTimeMillis())
+        val bytes = obj.optLong("max_body_bytes", 0L)
+        val samples = obj.optInt("max_samples", 0)
+        if (bytes > 0) editor.putLong(PREF_BYTES, bytes) else editor.remove(PREF_BYTES)
+        if (samples > 0) editor.putInt(PREF_SAMPLES, samples) else editor.remove(PREF_SAMPLES)
+        editor.apply()
+    }
+
+    private fun fetch(context: Context, http: OkHttpClient) {
+        val sp = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE)
+        val request = Request.Builder().url(context.getString(R.string.api_base_url) + PATH).get().build()
+        try {
+            http.newCall(request).execute().use { response ->
+                if (response.isSuccessful) {
+                    HealthSyncManager.rememberEncodings(context, response.code, response.header(HealthSyncManager.ENCODINGS_HEADER))
+                    store(context, JSONObject(response.body?.string() ?: "{}"))
+                } else {
+                    // A 404 from an older server is cached too, so it isn't asked again on every sync
+                    sp.edit().putLong(PREF_FETCHED, System.currentTimeMillis()).apply()
+                }
+            }
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.vitalink.connect
+
+import android.content.Context
+import androidx.health.connect.client.records.DistanceRecord
+import androidx.health.connect.client.records.HeartRateRecord
+import androidx.health.connect.client.records.OxygenSaturationRecord
+import androidx.health.connect.client.records.Record
+import androidx.health.connect.client.records.StepsRecord
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import okhttp3.OkHttpClient
+import java.time.Instant
+import java.time.ZoneId
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.random.Random
+
+// Write-ahead outbox for Health Connect data. Sync stores records in the pending_* tables
+// first and the drainer uploads them in bounded batches, deleting rows only once the server
+// has acknowledged them, so a failed upload is retried from Room instead of re-read.
+object SyncOutbox {
+    private const val PREFS = "vitalink_outbox"
+    private const val BATCH_PATH = "/patient/sync-batch"
+    const val MAX_IN_FLIGHT = 2
+    private const val MAX_ATTEMPTS = 4
+    private const val BACKOFF_BASE_MS = 1_000L
+    private const val BACKOFF_CAP_MS = 30_000L
+    private const val UPLOADED_RETENTION_MS = 30 * 24 * 60 * 60 * 1000L
+    // A Health Connect id (36-char UUID) as a quoted JSON array element, with headroom
+    private const val DELETED_ID_BYTES = 48L
+
+    // One page of a full Health Connect read, queued as it arrives
+    suspend fun enqueuePage(context: Context, patientId: String, page: List<Record>) {
+        if (page.isEmpty()) return
+        val changes = HealthChanges(
+            page.filterIsInstance<StepsRecord>(),
+            page.filterIsInstance<DistanceRecord>(),
+            page.filterIsInstance<HeartRateRecord>(),
+            page.filterIsInstance<OxygenSaturationRecord>(),
+            deletedIds = emptyList(),
+            nextTokens = emptyMap(),
+            newSamples = 0
+        )
+        enqueue(context, patientId, changes)
+    }
+
+    suspend fun enqueue(context: Context, patientId: String, changes: HealthChanges) {
+        val now = Instant.now()
+        val bucketer = ZoneBucketer(ZoneId.systemDefault(), now.minusSeconds(8 * 24 * 60 * 60L), now)
+        fun offsetMin(at: Instant) = (bucketer.offsetMillis(at.toEpochMilli()) / 60_000L).toInt()
+
+        // Skip record versions the server has already acknowledged (same metadata.id and lastModifiedTime)
+        val dao = LocalDb.get(context).dao()
+        val all: List<Record> = changes.steps + changes.distance + changes.heartRate + changes.spo2
+        val uploaded = dao.uploadedVersions(all.map { PendingKeys.recordKey(patientId, it.metadata.id) })
+        fun <T : Record> List<T>.fresh() = filter {
+            uploaded[PendingKeys.recordKey(patientId, it.metadata.id)] != it.metadata.lastModifiedTime.toEpochMilli()
+        }
+
+        val steps = changes.steps.fresh().map { r ->
+            PendingSteps(
+                uid = PendingKeys.uid("steps", patientId, r.metadata.id, r.startTime.toEpochMilli()),
+                patientId = patientId,
+                originId = r.metadata.dataOrigin.packageName,
+                deviceId = r.metadata.device?.model ?: "",
+                startTs = r.startTime.toEpochMilli(),
+                endTs = r.endTime.toEpochMilli(),
+                count = r.count,
+                tzOffsetMin = r.startZoneOffset?.totalSeconds?.div(60) ?: offsetMin(r.startTime),
+                recordId = r.metadata.id,
+                lastModifiedMs = r.metadata.lastModifiedTime.toEpochMilli()
+            )
+        }
+        val distance = changes.distance.fresh().map { r ->
+            PendingDistance(
+                uid = PendingKeys.uid("distance", patientId, r.metadata.id, r.startTime.toEpochMilli()),
+                patientId = patientId,
+                originId = r.metadata.dataOrigin.packageName,
+                deviceId = r.metadata.device?.model ?: "",
+                startTs = r.startTime.toEpochMilli(),
+                endTs = r.endTime.toEpochMilli(),
+                meters = Math.round(r.distance.inMeters),
+                tzOffsetMin = r.startZoneOffset?.totalSeconds?.div(60) ?: offsetMin(r.startTime),
+                recordId = r.metadata.id,
+                lastModifiedMs = r.metadata.lastModifiedTime.toEpochMilli()
+            )
+        }
+        val hr = ArrayList<PendingHr>()
+        for (r in changes.heartRate.fresh()) {
+            for (s in r.samples) {
+                hr.add(
+                    PendingHr(
+                        uid = PendingKeys.uid("hr", patientId, r.metadata.id, s.time.toEpochMilli()),
+                        patientId = patientId,
+                        originId = r.metadata.dataOrigin.packageName,
+                        deviceId = r.metadata.device?.model ?: "",
+                        timeTs = s.time.toEpochMilli(),
+                        bpm = s.beatsPerMinute,
+                        tzOffsetMin = offsetMin(s.time),
+                        recordId = r.metadata.id,
+                        lastModifiedMs = r.metadata.lastModifiedTime.toEpochMilli()
+                    )
+                )
+            }
+        }
+        val spo2 = changes.spo2.fresh().map { r ->
+            PendingSpo2(
+                uid = PendingKeys.uid("spo2", patientId, r.metadata.id, r.time.toEpochMilli()),
+                patientId = patientId,
+                originId = r.metadata.dataOrigin.packageName,
+                deviceId = r.metadata.device?.model ?: "",
+                timeTs = r.time.toEpochMilli(),
+                spo2Pct = r.percentage.value,
+                tzOffsetMin = r.zoneOffset?.totalSeconds?.div(60) ?: offsetMin(r.time),
+                recordId = r.metadata.id,
+                lastModifiedMs = r.metadata.lastModifiedTime.toEpochMilli()
+            )
+        }
+        dao.enqueueSyncBatch(PendingBatch(steps, distance, hr, spo2))
+
+        if (changes.deletedIds.isNotEmpty()) {
+            val sp = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+            val ids = sp.getStringSet("deleted:$patientId", emptySet())?.toMutableSet() ?: mutableSetOf()
+            ids.addAll(changes.deletedIds)
+            sp.edit().putStringSet("deleted:$patientId", ids).apply()
+        }
+    }
+
+    // Uploads queued rows until the queue is empty or a request fails. One producer claims
+    // batches from Room and cuts them to the server's SyncLimits while up to [maxInFlight]
+    // uploads run; the channel between them holds at most [maxInFlight] pieces, so the outbox
+    // is only read as fast as uploads drain it.
+    // Returns the last HTTP status (204 when there was nothing to send), the failing status,
+    // or 0 on a network error. Rows of unacknowledged batches stay queued for the next run.
+    suspend fun drain(
+        context: Context,
+        patientId: String,
+        http: OkHttpClient,
+        maxInFlight: Int = MAX_IN_FLIGHT,
+        maxPieces: Int = Int.MAX_VALUE
+    ): Int = coroutineScope {
+        val dao = LocalDb.get(context).dao()
+        val sp = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+        dao.purgeOtherPatients(patientId)
+        // Older than any re-read window, so these versions can't come back through a full read
+        dao.pruneUploaded(System.currentTimeMillis() - UPLOADED_RETENTION_MS)
+
+        val limits = SyncCapabilities.limits(context, http)
+
+        // Deletions go up on their own first so they never race a batch for the same days
+        val deleted = sp.getStringSet("deleted:$patientId", emptySet()) ?: emptySet()
+        var status = 204
+        val idsPerRequest = minOf(limits.maxSamples.toLong(), limits.maxBodyBytes / DELETED_ID_BYTES).toInt().coerceAtLeast(1)
+        for (chunk in deleted.sorted().chunked(idsPerRequest)) {
+            val code = upload(context, http, patientId, PendingBatch(emptyList(), emptyList(), emptyList(), emptyList()), chunk.toSet())
+            if (code !in 200..299) return@coroutineScope code
+            status = code
+            val left = (sp.getStringSet("deleted:$patientId", emptySet()) ?: emptySet()) - chunk.toSet()
+            sp.edit().putStringSet("deleted:$patientId", left).apply()
+        }
+
+        val batches = Channel<PendingBatch>(capacity = maxInFlight)
+        val failure = AtomicReference<Int?>(null)
+        val lastOk = AtomicInteger(status)
+
+        val producer = launch {
+            var cursor = PendingCursor()
+            var sent = 0
+            try {
+                claim@ while (failure.get() == null) {
+                    val batch = dao.claimNextBatch(patientId, cursor)
+                    if (batch.isEmpty()) break
+                    // Claims are sized by row count; requests are cut by encoded size as well
+                    val compact = HealthSyncManager.compactEncodingSupported(context)
+                    for (piece in SyncBatchBody.chunk(batch, limits, compact)) {
+                        // Unsent rows stay queued for a later, unlimited drain
+                        if (sent++ >= maxPieces) break@claim
+                        batches.send(piece)
+                    }
+                    cursor = batch.nextCursor(cursor)
+                }
+            } finally {
+                batches.close()
+            }
+        }
+        val uploaders = List(maxInFlight) {
+            launch {
+                for (batch in batches) {
+                    val code = upload(context, http, patientId, batch, emptySet())
+                    if (code !in 200..299) {
+                        failure.compareAndSet(null, code)
+                        batches.cancel()
+                        break
+                    }
+                    dao.ackBatch(patientId, batch, System.currentTimeMillis())
+                    lastOk.set(code)
+                }
+            }
+        }
+        producer.join()
+        uploaders.joinAll()
+        failure.get() ?: lastOk.get()
+    }
+
+    suspend fun hasPending(context: Context, patientId: String): Boolean =
+        LocalDb.get(context).dao().hasPending(patientId)
+
+    // Retries transient failures (network errors, 408, 429, 5xx) with full-jitter exponential
+    // backoff. Every attempt carries the same Idempotency-Key, so if an earlier attempt was
+    // applied and only its response was lost, the server acknowledges the retry without re-ingesting.
+    private suspend fun upload(context: Context, http: OkHttpClient, patientId: String, batch: PendingBatch, deleted: Set<String>): Int {
+        val key = PendingKeys.batchKey(patientId, batch, deleted)
+        var attempt = 0
+        while (true) {
+            val compact = HealthSyncManager.compactEncodingSupported(context)
+            var code = HealthSyncManager.postSyncMetrics(context, http, SyncBatchBody(patientId, batch, deleted, compact), BATCH_PATH, key)
+            if (code == 415 && compact) {
+                code = HealthSyncManager.postSyncMetrics(context, http, SyncBatchBody(patientId, batch, deleted, false), BATCH_PATH, key)
+            }
+            val transient = code == 0 || code == 408 || code == 429 || code >= 500
+            if (!transient || ++attempt >= MAX_ATTEMPTS) return code
+            delay(Random.nextLong(0, minOf(BACKOFF_CAP_MS, BACKOFF_BASE_MS shl attempt)))
+        }
+    }
+}
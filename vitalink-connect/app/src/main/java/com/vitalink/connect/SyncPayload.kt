@@ -0,0 +1,222 @@
+package com.vitalink.connect
+
+import android.util.JsonWriter
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.RequestBody
+import okio.BufferedSink
+import java.io.OutputStreamWriter
+import java.time.Instant
+import java.time.LocalDate
+
+// Request body for /patient/sync-batch that writes the claimed rows straight into OkHttp's sink
+// with a streaming JsonWriter, so no JSON tree or payload string is built on the heap.
+// Samples are serialized from [batch] on every write, so the body can be replayed (401 retry).
+// With [compact], HR and SpO2 go as columns instead of one object per sample:
+// {"t0": <epoch millis>, "dt": [millis since previous sample], "v": [values]}, plus
+// "ids" (distinct Health Connect record ids) and "r" (each sample's index into ids).
+// Samples carry their source record id as "id" so the server can key rows on it. HR samples
+// also carry the record's lastModifiedTime as "rv" (compact: "rvs", parallel to "ids"), so the
+// server can drop samples an edit removed from the record.
+class SyncBatchBody(
+    private val patientId: String,
+    private val batch: PendingBatch,
+    private val deletedIds: Collection<String>,
+    private val compact: Boolean = false
+) : RequestBody() {
+
+    // Indices into batch lists, grouped by each row's local day (steps and distance by end time)
+    private class DayRows {
+        val steps = ArrayList<Int>()
+        val distance = ArrayList<Int>()
+        val hr = ArrayList<Int>()
+        val spo2 = ArrayList<Int>()
+    }
+
+    private val days = sortedMapOf<Long, DayRows>().also { days ->
+        fun rows(epochMillis: Long, tzOffsetMin: Int) =
+            days.getOrPut(ZoneBucketer.epochDay(epochMillis, tzOffsetMin * 60_000L)) { DayRows() }
+        batch.steps.forEachIndexed { i, r -> rows(r.endTs, r.tzOffsetMin).steps.add(i) }
+        batch.distance.forEachIndexed { i, r -> rows(r.endTs, r.tzOffsetMin).distance.add(i) }
+        batch.hr.forEachIndexed { i, r -> rows(r.timeTs, r.tzOffsetMin).hr.add(i) }
+        batch.spo2.forEachIndexed { i, r -> rows(r.timeTs, r.tzOffsetMin).spo2.add(i) }
+    }
+
+    override fun contentType(): MediaType = if (compact) COMPACT_JSON else JSON
+
+    override fun writeTo(sink: BufferedSink) {
+        // Not closed: closing the writer would close OkHttp's sink
+        val w = JsonWriter(OutputStreamWriter(sink.outputStream(), Charsets.UTF_8))
+        w.beginObject()
+        w.name("patient_id").value(patientId)
+        w.name("days").beginArray()
+        for ((epochDay, rows) in days) {
+            w.beginObject()
+            w.name("date").value(LocalDate.ofEpochDay(epochDay).toString())
+            w.name("steps_samples").beginArray()
+            for (i in rows.steps) {
+                val r = batch.steps[i]
+                w.beginObject().name("startTime").value(iso(r.startTs)).name("endTime").value(iso(r.endTs)).name("count").value(r.count)
+                id(w, r.recordId).endObject()
+            }
+            w.endArray()
+            w.name("distance_samples").beginArray()
+            for (i in rows.distance) {
+                val r = batch.distance[i]
+                w.beginObject().name("startTime").value(iso(r.startTs)).name("endTime").value(iso(r.endTs)).name("distanceMeters").value(r.meters)
+                id(w, r.recordId).endObject()
+            }
+            w.endArray()
+            if (compact) {
+                writeColumns(w, "hr_columns", rows.hr, { batch.hr[it].timeTs }, { batch.hr[it].recordId }, { batch.hr[it].lastModifiedMs }) { w.value(batch.hr[it].bpm) }
+                writeColumns(w, "spo2_columns", rows.spo2, { batch.spo2[it].timeTs }, { batch.spo2[it].recordId }, null) { w.value(batch.spo2[it].spo2Pct) }
+            } else {
+                w.name("hr_samples").beginArray()
+                for (i in rows.hr) {
+                    val r = batch.hr[i]
+                    w.beginObject().name("time").value(iso(r.timeTs)).name("bpm").value(r.bpm)
+                    id(w, r.recordId)
+                    if (r.recordId.isNotEmpty()) w.name("rv").value(r.lastModifiedMs)
+                    w.endObject()
+                }
+                w.endArray()
+                w.name("spo2_samples").beginArray()
+                for (i in rows.spo2) {
+                    val r = batch.spo2[i]
+                    w.beginObject().name("time").value(iso(r.timeTs)).name("percentage").value(r.spo2Pct)
+                    id(w, r.recordId).endObject()
+                }
+                w.endArray()
+            }
+            w.endObject()
+        }
+        w.endArray()
+        if (deletedIds.isNotEmpty()) {
+            w.name("deleted_record_ids").beginArray()
+            deletedIds.forEach { w.value(it) }
+            w.endArray()
+        }
+        w.endObject()
+        w.flush()
+    }
+
+    private fun iso(epochMillis: Long) = Instant.ofEpochMilli(epochMillis).toString()
+
+    // Rows queued before record ids were tracked have an empty recordId; those go without one
+    private fun id(w: JsonWriter, recordId: String): JsonWriter =
+        if (recordId.isEmpty()) w else w.name("id").value(recordId)
+
+    private inline fun writeColumns(
+        w: JsonWriter,
+        name: String,
+        rows: List<Int>,
+        ts: (Int) -> Long,
+        recordId: (Int) -> String,
+        version: ((Int) -> Long)?,
+        value: (Int) -> Unit
+    ) {
+        if (rows.isEmpty()) return
+        val t0 = ts(rows[0])
+        w.name(name).beginObject()
+        w.name("t0").value(t0)
+        w.name("dt").beginArray()
+        var prev = t0
+        for (i in rows) {
+            val t = ts(i)
+            w.value(t - prev)
+            prev = t
+        }
+        w.endArray()
+        w.name("v").beginArray()
+        for (i in rows) value(i)
+        w.endArray()
+        // HR samples of one record share its id, so ids are written once and referenced by index
+        val ids = LinkedHashMap<String, Int>()
+        val versions = ArrayList<Long>()
+        for (i in rows) {
+            val id = recordId(i)
+            if (id.isNotEmpty() && id !in ids) {
+                ids[id] = ids.size
+                if (version != null) versions.add(version(i))
+            }
+        }
+        if (ids.isNotEmpty()) {
+            w.name("ids").beginArray()
+            ids.keys.forEach { w.value(it) }
+            w.endArray()
+            if (version != null) {
+                w.name("rvs").beginArray()
+                versions.forEach { w.value(it) }
+                w.endArray()
+            }
+            w.name("r").beginArray()
+            for (i in rows) w.value(ids[recordId(i)] ?: -1)
+            w.endArray()
+        }
+        w.endObject()
+    }
+
+    companion object {
+        private val JSON = "application/json".toMediaType()
+        private val COMPACT_JSON = "application/vnd.vitalink.sync-compact+json".toMediaType()
+
+        // Upper bounds on what writeTo emits, used to cut batches before they are encoded: ISO
+        // instants are at most 24 chars and values are bounded by their column types.
+        private const val ENVELOPE_BYTES = 256L
+        private const val DAY_BYTES = 160L
+
+        private fun idBytes(recordId: String) = if (recordId.isEmpty()) 0L else recordId.length + 8L
+        private fun stepsBytes(r: PendingSteps) = 96L + idBytes(r.recordId)
+        private fun distanceBytes(r: PendingDistance) = 104L + idBytes(r.recordId)
+        // "rv" / "rvs" entry: a 13-digit epoch-millis version plus its key
+        private const val VERSION_BYTES = 20L
+        private fun hrBytes(r: PendingHr, compact: Boolean) =
+            if (compact) 24L else 48L + idBytes(r.recordId) + (if (r.recordId.isEmpty()) 0L else VERSION_BYTES)
+        private fun spo2Bytes(r: PendingSpo2, compact: Boolean) = if (compact) 40L else 64L + idBytes(r.recordId)
+
+        // Splits [batch] into pieces whose encoded body stays under [limits], so a large backlog
+        // goes up in several requests instead of one that a proxy rejects. Row order is kept.
+        fun chunk(batch: PendingBatch, limits: SyncLimits, compact: Boolean): List<PendingBatch> {
+            val out = ArrayList<PendingBatch>()
+            var steps = ArrayList<PendingSteps>()
+            var distance = ArrayList<PendingDistance>()
+            var hr = ArrayList<PendingHr>()
+            var spo2 = ArrayList<PendingSpo2>()
+            var bytes = ENVELOPE_BYTES
+            var samples = 0
+            val days = HashSet<Long>()
+            // Compact columns write each record id once, on the first sample that references it
+            val ids = HashSet<String>()
+
+            fun flush() {
+                if (samples == 0) return
+                out.add(PendingBatch(steps, distance, hr, spo2))
+                steps = ArrayList(); distance = ArrayList(); hr = ArrayList(); spo2 = ArrayList()
+                bytes = ENVELOPE_BYTES
+                samples = 0
+                days.clear()
+                ids.clear()
+            }
+
+            // Accounts for one row, starting a new chunk first if it wouldn't fit in this one
+            fun reserve(rowBytes: Long, epochMillis: Long, tzOffsetMin: Int, recordId: String?, idExtraBytes: Long = 0L) {
+                val day = ZoneBucketer.epochDay(epochMillis, tzOffsetMin * 60_000L)
+                fun cost() = rowBytes +
+                    (if (day in days) 0L else DAY_BYTES) +
+                    (if (recordId == null || recordId in ids) 0L else idBytes(recordId) + idExtraBytes)
+                if (samples > 0 && (samples + 1 > limits.maxSamples || bytes + cost() > limits.maxBodyBytes)) flush()
+                bytes += cost()
+                samples++
+                days.add(day)
+                if (recordId != null) ids.add(recordId)
+            }
+
+            for (r in batch.steps) { reserve(stepsBytes(r), r.endTs, r.tzOffsetMin, null); steps.add(r) }
+            for (r in batch.distance) { reserve(distanceBytes(r), r.endTs, r.tzOffsetMin, null); distance.add(r) }
+            for (r in batch.hr) { reserve(hrBytes(r, compact), r.timeTs, r.tzOffsetMin, r.recordId.takeIf { compact }, VERSION_BYTES); hr.add(r) }
+            for (r in batch.spo2) { reserve(spo2Bytes(r, compact), r.timeTs, r.tzOffsetMin, r.recordId.takeIf { compact }); spo2.add(r) }
+            flush()
+            return out
+        }
+    }
+}
@@ -6,21 +6,26 @@ import android.content.Intent
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
-import okhttp3.OkHttpClient
 
+// Hourly alarm (no action): reminder/medication refresh plus the daily check.
+// ACTION_DAILY_CHECK alarms: only the daily notification check.
 class SyncReceiver : BroadcastReceiver() {
     override fun onReceive(context: Context, intent: Intent) {
         val sp = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE)
         val patientId = sp.getString("patientId", null) ?: return
-        val baseUrl = context.getString(R.string.api_base_url)
-        
+        val dailyOnly = intent.action == ACTION_DAILY_CHECK
+
         val pendingResult = goAsync()
         CoroutineScope(Dispatchers.IO).launch {
             try {
-                val http = OkHttpClient()
-                ReminderScheduler.refresh(context, http, baseUrl, patientId)
+                if (!dailyOnly) {
+                    SyncTriggers.refreshReminders(context)
+                }
+                SyncTriggers.dailyChecks(context)
+                if (dailyOnly) return@launch
+
                 val testPref = context.getSharedPreferences("vitalink_tests", Context.MODE_PRIVATE)
-                
+
                 var enabled = true
                 if (android.os.Build.VERSION.SDK_INT >= 24) {
                     val nm = context.getSystemService(Context.NOTIFICATION_SERVICE) as android.app.NotificationManager
@@ -32,12 +37,7 @@ class SyncReceiver : BroadcastReceiver() {
                     ReminderScheduler.sendTestNotifications(context, patientId)
                     testPref.edit().putBoolean("sent_once", true).apply()
                 }
-                // Trigger Background Sync of Vitals (Requires API 26+ for Health Connect and java.time)
-                if (android.os.Build.VERSION.SDK_INT >= 26) {
-                    try {
-                        HealthSyncManager.syncData(context)
-                    } catch (_: Exception) {}
-                }
+                // Health Connect sync runs in SyncWorker, outside goAsync()'s time limit
             } catch (e: Exception) {
                 e.printStackTrace()
             } finally {
@@ -45,4 +45,8 @@ class SyncReceiver : BroadcastReceiver() {
             }
         }
     }
+
+    companion object {
+        const val ACTION_DAILY_CHECK = "com.vitalink.connect.action.DAILY_CHECK"
+    }
 }
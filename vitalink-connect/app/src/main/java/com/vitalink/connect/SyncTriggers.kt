@@ -0,0 +1,50 @@
+package com.vitalink.connect
+
+import android.content.Context
+import java.util.concurrent.atomic.AtomicBoolean
+
+// Every path that refreshes reminders and medication alarms goes through here: the hourly
+// alarm, the daily check alarms, app start and the home screen. A trigger that arrives while a
+// refresh is running, or shortly after one finished, is collapsed into it instead of repeating
+// the same requests and rescheduling.
+object SyncTriggers {
+    private const val PREFS = "vitalink_triggers"
+    private const val KEY_LAST_REFRESH = "lastReminderRefreshAt"
+    // The hourly alarm is inexact and can land next to app start or a daily check alarm
+    private const val MIN_REFRESH_GAP_MS = 15 * 60 * 1000L
+
+    private val refreshing = AtomicBoolean(false)
+    private val checkLock = Any()
+
+    // Returns false when the trigger was collapsed. [force] skips the recent-run check (user
+    // actions) but still never runs two refreshes at once.
+    fun refreshReminders(context: Context, force: Boolean = false): Boolean {
+        val appContext = context.applicationContext
+        val patientId = appContext.getSharedPreferences("vitalink", Context.MODE_PRIVATE).getString("patientId", null)
+            ?: return false
+        val sp = appContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+        val sinceLast = System.currentTimeMillis() - sp.getLong(KEY_LAST_REFRESH, 0L)
+        if (!force && sinceLast in 0 until MIN_REFRESH_GAP_MS) return false
+        if (!refreshing.compareAndSet(false, true)) return false
+        try {
+            val baseUrl = appContext.getString(R.string.api_base_url)
+            ReminderScheduler.refresh(appContext, VitalinkApplication.http(appContext), baseUrl, patientId)
+            sp.edit().putLong(KEY_LAST_REFRESH, System.currentTimeMillis()).apply()
+        } finally {
+            refreshing.set(false)
+        }
+        return true
+    }
+
+    // The daily notification check is light (prefs plus at most one status request a day), so
+    // it runs on every trigger; overlapping calls wait rather than notifying twice.
+    fun dailyChecks(context: Context) {
+        val appContext = context.applicationContext
+        val patientId = appContext.getSharedPreferences("vitalink", Context.MODE_PRIVATE).getString("patientId", null)
+            ?: return
+        synchronized(checkLock) {
+            val baseUrl = appContext.getString(R.string.api_base_url)
+            ReminderScheduler.checkDailyNotifications(appContext, VitalinkApplication.http(appContext), baseUrl, patientId)
+        }
+    }
+}
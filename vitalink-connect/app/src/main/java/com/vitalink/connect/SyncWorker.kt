@@ -0,0 +1,161 @@
+package com.vitalink.connect
+
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.ServiceInfo
+import android.net.ConnectivityManager
+import android.os.BatteryManager
+import androidx.core.app.NotificationCompat
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingWorkPolicy
+import androidx.work.ForegroundInfo
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequestBuilder
+import androidx.work.OutOfQuotaPolicy
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import androidx.work.workDataOf
+import java.util.concurrent.TimeUnit
+
+// Background Health Connect sync. WorkManager keeps the process alive for the whole run, so a
+// long drain isn't cut off the way work inside a BroadcastReceiver is.
+//
+// MODE_RECENT reads the latest changes and uploads them; on a metered network and battery it
+// stops after RECENT_DRAIN_PIECES uploads and leaves the rest to MODE_BACKLOG, which waits
+// for an unmetered network or a charger. Recent runs are a chain of one-time requests, each
+// scheduling the next after the interval SyncCadence has learned for this device.
+class SyncWorker(context: Context, params: WorkerParameters) : CoroutineWorker(context, params) {
+
+    override suspend fun doWork(): Result {
+        val context = applicationContext
+        val patientId = context.getSharedPreferences("vitalink", Context.MODE_PRIVATE).getString("patientId", null)
+            ?: return Result.success()
+        val backlog = inputData.getString(KEY_MODE) == MODE_BACKLOG
+        val drainLimit = if (backlog || cheapToUpload(context)) Int.MAX_VALUE else RECENT_DRAIN_PIECES
+
+        val code = HealthSyncManager.syncData(context, drainLimit)
+        // CODE_FAILED (no permission, no Health Connect) isn't retried; the next scheduled run tries again
+        val failed = code == HealthSyncManager.CODE_FAILED
+        val transient = code == HealthSyncManager.CODE_NETWORK_ERROR || code == 408 || code == 429 || code >= 500
+        if (transient && runAttemptCount + 1 < MAX_RUN_ATTEMPTS) return Result.retry()
+        if (!backlog && !failed && SyncOutbox.hasPending(context, patientId)) {
+            scheduleBacklog(context)
+        }
+        if (backlog) return if (transient || failed) Result.failure() else Result.success()
+
+        // A link of the cadence chain appends its successor; any other recent run (app start)
+        // restarts the chain, since it has just done the next sync's work.
+        val chained = inputData.getBoolean(KEY_CHAINED, false)
+        // Only the chain's own runs move the cadence; samples read by manual or app-start syncs
+        // in between are counted towards the next one
+        if (chained && !failed && code != HealthSyncManager.CODE_NETWORK_ERROR) SyncCadence.record(context)
+        scheduleNext(context, SyncCadence.intervalMs(context), if (chained) ExistingWorkPolicy.APPEND_OR_REPLACE else ExistingWorkPolicy.REPLACE)
+        // Succeed even after the last retry so the appended successor still runs
+        return Result.success()
+    }
+
+    // Only asked for expedited runs on API < 31, where they run as a foreground service
+    override suspend fun getForegroundInfo(): ForegroundInfo {
+        val context = applicationContext
+        val nm = context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+        if (nm.getNotificationChannel(CHANNEL_ID) == null) {
+            nm.createNotificationChannel(NotificationChannel(CHANNEL_ID, "Health data sync", NotificationManager.IMPORTANCE_LOW))
+        }
+        val notification = NotificationCompat.Builder(context, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_notification)
+            .setContentTitle("Syncing health data")
+            .setOngoing(true)
+            .build()
+        return if (android.os.Build.VERSION.SDK_INT >= 29) {
+            ForegroundInfo(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC)
+        } else {
+            ForegroundInfo(NOTIFICATION_ID, notification)
+        }
+    }
+
+    companion object {
+        private const val KEY_MODE = "mode"
+        private const val KEY_CHAINED = "chained"
+        private const val MODE_RECENT = "recent"
+        private const val MODE_BACKLOG = "backlog"
+
+        // Fixed hourly periodic work of earlier versions, replaced by CADENCE_WORK
+        private const val LEGACY_PERIODIC_WORK = "vitalink-sync"
+        private const val CADENCE_WORK = "vitalink-sync-cadence"
+        private const val NOW_WORK = "vitalink-sync-now"
+        private const val BACKLOG_UNMETERED_WORK = "vitalink-sync-backlog-unmetered"
+        private const val BACKLOG_CHARGING_WORK = "vitalink-sync-backlog-charging"
+
+        // With the default SyncLimits this is a few MB of uncompressed JSON per metered run
+        const val RECENT_DRAIN_PIECES = 8
+        private const val MAX_RUN_ATTEMPTS = 5
+        private const val BACKOFF_SECONDS = 30L
+
+        private const val CHANNEL_ID = "vitalink_sync"
+        private const val NOTIFICATION_ID = 7001
+
+        private val connected = Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build()
+
+        // Starts the recent-changes chain if it isn't already pending; KEEP so app starts don't
+        // push the next run back. WorkManager persists it across reboots.
+        fun ensureScheduled(context: Context) {
+            WorkManager.getInstance(context).cancelUniqueWork(LEGACY_PERIODIC_WORK)
+            scheduleNext(context, SyncCadence.intervalMs(context), ExistingWorkPolicy.KEEP)
+        }
+
+        private fun scheduleNext(context: Context, delayMs: Long, policy: ExistingWorkPolicy) {
+            val request = OneTimeWorkRequestBuilder<SyncWorker>()
+                .setConstraints(connected)
+                .setInitialDelay(delayMs, TimeUnit.MILLISECONDS)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_SECONDS, TimeUnit.SECONDS)
+                .setInputData(workDataOf(KEY_MODE to MODE_RECENT, KEY_CHAINED to true))
+                .build()
+            WorkManager.getInstance(context).enqueueUniqueWork(CADENCE_WORK, policy, request)
+        }
+
+        // Today's changes, run as soon as possible; falls back to regular work when out of expedited quota
+        fun syncNow(context: Context) {
+            val request = OneTimeWorkRequestBuilder<SyncWorker>()
+                .setConstraints(connected)
+                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_SECONDS, TimeUnit.SECONDS)
+                .setInputData(workDataOf(KEY_MODE to MODE_RECENT))
+                .build()
+            WorkManager.getInstance(context).enqueueUniqueWork(NOW_WORK, ExistingWorkPolicy.KEEP, request)
+        }
+
+        // WorkManager constraints can only be combined with AND, so "unmetered or charging" is two
+        // requests. Whichever runs first drains the outbox; the other finds it empty.
+        private fun scheduleBacklog(context: Context) {
+            val wm = WorkManager.getInstance(context)
+            val unmetered = Constraints.Builder().setRequiredNetworkType(NetworkType.UNMETERED).build()
+            val charging = Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).setRequiresCharging(true).build()
+            for ((name, constraints) in listOf(BACKLOG_UNMETERED_WORK to unmetered, BACKLOG_CHARGING_WORK to charging)) {
+                val request = OneTimeWorkRequestBuilder<SyncWorker>()
+                    .setConstraints(constraints)
+                    .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_SECONDS, TimeUnit.SECONDS)
+                    .setInputData(workDataOf(KEY_MODE to MODE_BACKLOG))
+                    .build()
+                wm.enqueueUniqueWork(name, ExistingWorkPolicy.KEEP, request)
+            }
+        }
+
+        fun cancelAll(context: Context) {
+            val wm = WorkManager.getInstance(context)
+            listOf(LEGACY_PERIODIC_WORK, CADENCE_WORK, NOW_WORK, BACKLOG_UNMETERED_WORK, BACKLOG_CHARGING_WORK).forEach { wm.cancelUniqueWork(it) }
+        }
+
+        private fun cheapToUpload(context: Context): Boolean {
+            val cm = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+            if (!cm.isActiveNetworkMetered) return true
+            val battery = context.registerReceiver(null, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+            val plugged = battery?.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) ?: 0
+            return plugged != 0
+        }
+    }
+}
@@ -1,9 +1,51 @@
 package com.vitalink.connect
 
 import android.app.Application
+import android.content.Context
 import androidx.appcompat.app.AppCompatDelegate
+import okhttp3.Cache
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.logging.HttpLoggingInterceptor
+import java.io.File
+import java.util.concurrent.TimeUnit
 
 class VitalinkApplication : Application() {
+    // One HTTP stack for the whole process: every screen, receiver and sync shares its
+    // connection pool (and so its TLS sessions), dispatcher threads and interceptors.
+    // Profiles are derived with newBuilder(), which only changes timeouts on top of that.
+    // The disk cache keeps ETag'd GET responses (reminders, medications, summary) so they are
+    // revalidated with If-None-Match and a 304 is answered from disk.
+    val http: OkHttpClient by lazy {
+        OkHttpClient.Builder()
+            .cache(Cache(File(cacheDir, "http"), HTTP_CACHE_BYTES))
+            .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .addInterceptor(AuthInterceptor(this))
+            .authenticator(AuthTokens.TokenAuthenticator(this))
+            .addInterceptor(HttpLoggingInterceptor().apply { level = HttpLoggingInterceptor.Level.BASIC })
+            .addInterceptor(GzipRequestInterceptor())
+            .connectTimeout(15, TimeUnit.SECONDS)
+            .readTimeout(30, TimeUnit.SECONDS)
+            .writeTimeout(30, TimeUnit.SECONDS)
+            .build()
+    }
+
+    // Health data uploads and the slower server routes
+    val bulkHttp: OkHttpClient by lazy {
+        http.newBuilder()
+            .connectTimeout(30, TimeUnit.SECONDS)
+            .readTimeout(90, TimeUnit.SECONDS)
+            .writeTimeout(90, TimeUnit.SECONDS)
+            .build()
+    }
+
+    companion object {
+        private const val HTTP_CACHE_BYTES = 5L * 1024 * 1024
+
+        fun http(context: Context) = (context.applicationContext as VitalinkApplication).http
+        fun bulkHttp(context: Context) = (context.applicationContext as VitalinkApplication).bulkHttp
+    }
+
     override fun onCreate() {
         super.onCreate()
         val sp = getSharedPreferences("vitalink_prefs", android.content.Context.MODE_PRIVATE)
@@ -4,6 +4,7 @@ require('dotenv').config({ override: true })
 const { spawn } = require('child_process');
 const path = require('path');
 const fs = require('fs');
+const crypto = require('crypto');
 const multer = require('multer');
 const { GoogleGenerativeAI } = require('@google/generative-ai');
 const GEMINI_API_KEY = process.env.GEMINI_API_KEY || process.env.GOOGLE_GENAI_KEY || null
@@ -15,7 +16,8 @@ const app = express()
 app.use(cors({
   origin: '*',
   methods: ['GET', 'POST', 'PUT', 'DELETE', 'OPTIONS'],
-  allowedHeaders: ['Origin', 'X-Requested-With', 'Content-Type', 'Accept', 'Authorization'],
+  allowedHeaders: ['Origin', 'X-Requested-With', 'Content-Type', 'Content-Encoding', 'Accept', 'Authorization', 'Idempotency-Key', 'If-None-Match'],
+  exposedHeaders: ['ETag'],
   optionsSuccessStatus: 200
 }));
 app.use((req, res, next) => {
@@ -23,7 +25,18 @@ app.use((req, res, next) => {
   next()
 })
 
-app.use(express.json({ limit: '100mb' }))
+// Compact sync encoding: hr/spo2 samples sent as { t0, dt: [...], v: [...] } columns (see expandSampleColumns)
+const COMPACT_SYNC_TYPE = 'application/vnd.vitalink.sync-compact+json'
+// Health data uploads may be gzip/deflate encoded (Content-Encoding). body-parser inflates them as a
+// stream and applies `limit` to the inflated size, so a small compressed body can't expand past it.
+// Mounted before the general parser, which then sees the body as already read.
+const SYNC_MAX_INFLATED = process.env.SYNC_MAX_INFLATED || '20mb'
+app.use(['/patient/sync-metrics', '/patient/sync-batch', '/ingest'], express.json({
+  limit: SYNC_MAX_INFLATED,
+  inflate: true,
+  type: ['application/json', COMPACT_SYNC_TYPE]
+}))
+app.use(express.json({ limit: '100mb', type: ['application/json', COMPACT_SYNC_TYPE] }))
 
 // Manual CORS headers removed; using cors middleware
 
@@ -47,6 +60,11 @@ if (process.env.SUPABASE_URL && supabaseKey) {
     eq() { return this },
     gte() { return this },
     lte() { return this },
+    lt() { return this },
+    in() { return this },
+    is() { return this },
+    range() { return this },
+    delete() { return this },
     limit() { return this },
     order() { return this },
     or() { return this },
@@ -89,6 +107,87 @@ function toDateWithOffset(ts, offsetMin) {
   const day = String(d.getUTCDate()).padStart(2, '0')
   return `${y}-${m}-${day}`
 }
+// Splits yyyy-MM-dd dates into runs of consecutive days, each as the UTC [from, to) range it
+// covers, so one old edit next to today's data doesn't pull in every day between them
+function dayRunsWithOffset(dates, offsetMin) {
+  const off = (offsetMin === undefined || offsetMin === null) ? 480 : offsetMin
+  const starts = [...dates].sort().map(d => Date.parse(`${d}T00:00:00Z`))
+  const runs = []
+  for (const start of starts) {
+    const last = runs[runs.length - 1]
+    if (last && start === last.end) last.end = start + 86400000
+    else if (!last || start > last.end) runs.push({ start, end: start + 86400000 })
+  }
+  return runs.map(r => ({ from: new Date(r.start - off * 60000).toISOString(), to: new Date(r.end - off * 60000).toISOString() }))
+}
+// Columnar samples: t0 is epoch millis, dt[i] the millis since the previous sample
+// (dt[0] since t0), v[i] the value. Optional ids/r give each sample's Health Connect
+// record id as an index into ids, and rvs (parallel to ids) each record's version.
+// Expands back to the { time, <valueKey>, id, rv } items the sync pipeline takes.
+function expandSampleColumns(col, valueKey) {
+  if (!col || !Array.isArray(col.dt) || !Array.isArray(col.v)) return []
+  const ids = Array.isArray(col.ids) && Array.isArray(col.r) ? col.ids : null
+  const versions = ids && Array.isArray(col.rvs) ? col.rvs : null
+  const out = []
+  let t = Number(col.t0) || 0
+  const n = Math.min(col.dt.length, col.v.length)
+  for (let i = 0; i < n; i++) {
+    t += Number(col.dt[i]) || 0
+    const item = { time: new Date(t).toISOString(), [valueKey]: col.v[i] }
+    const id = ids ? ids[col.r[i]] : undefined
+    if (typeof id === 'string' && id) item.id = id
+    if (item.id && versions && Number.isFinite(Number(versions[col.r[i]]))) item.rv = Number(versions[col.r[i]])
+    out.push(item)
+  }
+  return out
+}
+// JSON response with a strong ETag over its body. no-cache lets clients keep the body but makes
+// them revalidate every time; a matching If-None-Match gets an empty 304.
+function sendJsonWithEtag(req, res, payload) {
+  const body = JSON.stringify(payload)
+  const etag = `"${crypto.createHash('sha1').update(body).digest('base64url')}"`
+  res.set('ETag', etag)
+  res.set('Cache-Control', 'private, no-cache')
+  const inm = req.get('If-None-Match')
+  if (inm && inm.split(',').some(t => t.trim().replace(/^W\//, '') === etag)) return res.status(304).end()
+  return res.status(200).type('application/json').send(body)
+}
+function withCompactSamples(obj) {
+  if (!obj) return obj
+  const out = { ...obj }
+  if (obj.hr_columns) out.hr_samples = expandSampleColumns(obj.hr_columns, 'bpm')
+  if (obj.spo2_columns) out.spo2_samples = expandSampleColumns(obj.spo2_columns, 'percentage')
+  return out
+}
+async function selectAllRows(sb, table, columns, patientId, tsCol, fromIso, toIso) {
+  const pageSize = 1000
+  const rows = []
+  for (let offset = 0; ; offset += pageSize) {
+    const { data, error } = await sb.from(table)
+      .select(columns)
+      .eq('patient_id', patientId)
+      .gte(tsCol, fromIso)
+      .lt(tsCol, toIso)
+      .order(tsCol, { ascending: true })
+      // Timestamps repeat (many HR/SpO2 samples share one); without a unique tiebreaker
+      // Postgres may order ties differently per page and rows get skipped or read twice
+      .order('id', { ascending: true })
+      .range(offset, offset + pageSize - 1)
+    if (error) throw error
+    if (!data || !data.length) break
+    rows.push(...data)
+    if (data.length < pageSize) break
+  }
+  return rows
+}
+// selectAllRows over every run of consecutive touched days (MYT dates)
+async function selectDayRuns(sb, table, columns, patientId, tsCol, days) {
+  const rows = []
+  for (const { from, to } of dayRunsWithOffset(days, 480)) {
+    rows.push(...await selectAllRows(sb, table, columns, patientId, tsCol, from, to))
+  }
+  return rows
+}
 async function ensurePatient(patientId, info) {
   if (!patientId) return { ok: false, error: 'missing patientId' }
 
@@ -293,36 +392,40 @@ app.post('/api/admin/login', adminLoginRoute);
 
 
 // --- MEDICATION ROUTES ---
-app.get('/patient/medications', async (req, res) => {
-  const pid = req.query.patientId
-  if (!pid) return res.status(400).json({ error: 'missing patientId' })
+async function medicationPreferences(pid) {
+  const { data, error } = await supabase
+    .from('medication')
+    .select('*')
+    .eq('patient_id', pid)
 
-  try {
-    const { data, error } = await supabase
-      .from('medication')
-      .select('*')
-      .eq('patient_id', pid)
+  if (error) throw error
 
-    if (error) throw error
+  const prefs = {
+    beta_blockers: false,
+    raas_inhibitors: false,
+    mras: false,
+    sglt2_inhibitors: false,
+    statin: false,
+    notify_hour: 9
+  }
 
-    const prefs = {
-      beta_blockers: false,
-      raas_inhibitors: false,
-      mras: false,
-      sglt2_inhibitors: false,
-      statin: false,
-      notify_hour: 9
-    }
+  if (data) {
+    data.forEach(m => {
+      if (m.class && prefs.hasOwnProperty(m.class)) {
+        prefs[m.class] = m.active
+      }
+    })
+  }
+  return prefs
+}
 
-    if (data) {
-      data.forEach(m => {
-        if (m.class && prefs.hasOwnProperty(m.class)) {
-          prefs[m.class] = m.active
-        }
-      })
-    }
+app.get('/patient/medications', async (req, res) => {
+  const pid = req.query.patientId
+  if (!pid) return res.status(400).json({ error: 'missing patientId' })
 
-    return res.status(200).json({ preferences: prefs })
+  try {
+    const prefs = await medicationPreferences(pid)
+    return sendJsonWithEtag(req, res, { preferences: prefs })
   } catch (e) {
     console.error('[medications] get error:', e)
     return res.status(500).json({ error: e.message })
@@ -402,50 +505,159 @@ app.post('/patient/medications', async (req, res) => {
 })
 
 // --- SYNC METRICS ROUTE ---
-app.post('/patient/sync-metrics', async (req, res) => {
-  const { patient_id, steps_samples, hr_samples, distance_samples, spo2_samples, date } = req.body
-
-  if (!patient_id) {
-    return res.status(400).json({ error: 'Missing patient_id' })
-  }
-
-  // Use authenticated client if token provided, to bypass RLS
-  let sb = supabase
+// Use authenticated client if token provided, to bypass RLS
+function syncClientFor(req) {
   const authHeader = req.headers.authorization
-  if (authHeader) {
-    sb = createClient(process.env.SUPABASE_URL, process.env.SUPABASE_ANON_KEY, {
-      global: { headers: { Authorization: authHeader } }
-    })
-  }
+  if (!authHeader) return supabase
+  return createClient(process.env.SUPABASE_URL, process.env.SUPABASE_ANON_KEY, {
+    global: { headers: { Authorization: authHeader } }
+  })
+}
 
-  console.log(`[sync-metrics] Syncing for ${patient_id} on ${date || 'unknown date'} (Auth: ${!!authHeader})`)
+// Clients pipeline several batches at once. Batches for the same patient are run one after
+// another, because two batches rebuilding the same day from raw rows at the same time could
+// leave an aggregate computed before the other's rows landed. Different patients still run in parallel.
+const patientSyncQueues = new Map()
+function queuePatientSync(patient_id, task) {
+  const prev = patientSyncQueues.get(patient_id) || Promise.resolve()
+  const run = prev.catch(() => { }).then(task)
+  patientSyncQueues.set(patient_id, run)
+  const cleanup = () => { if (patientSyncQueues.get(patient_id) === run) patientSyncQueues.delete(patient_id) }
+  run.then(cleanup, cleanup)
+  return run
+}
+function syncMetricsBatch(sb, patient_id, payload) {
+  return queuePatientSync(patient_id, () => runSyncMetricsBatch(sb, patient_id, payload))
+}
+
+// One pipeline for a whole upload, however many days it spans: one raw upsert, one raw
+// reload over the touched day range and one hour/day upsert per metric, with the four
+// metrics running side by side.
+async function runSyncMetricsBatch(sb, patient_id, payload) {
+  const { steps_samples, hr_samples, distance_samples, spo2_samples, deleted_record_ids } = payload
 
   // Helper to process metrics consistently with /ingest/ routes
   // Includes: Raw Upsert, Hour Aggregation, Day Aggregation
-  const processMetric = async (label, items, rawTable, hourTable, dayTable, mapRaw, aggFn, finalizeFn) => {
+  // Incremental clients only send what changed, so hour/day aggregates are rebuilt
+  // from the raw table for every day the payload touched rather than from the payload alone.
+  const processMetric = async (m, items) => {
     if (!items || items.length === 0) return
+    const { label, rawTable, mapRaw, rawSource } = m
 
     // 1. Upsert Raw
+    // Items from current clients carry their Health Connect record id, which is the record_uid
+    // (HR records hold many samples, so theirs is id#epochMillis). An edited record comes back with
+    // the same id and replaces its row. Older clients send no id and keep the timestamp UID.
+    const legacyUid = (i) => `${patient_id}-${label}-${i.time || i.startTime || i.timeTs}`
     const rawRows = items.map(i => {
-      const ts = i.time || i.startTime || i.timeTs
-      // Generate deterministic UID to avoid duplicates if re-synced
-      // We use patient_id + label + timestamp
-      const uid = `${patient_id}-${label}-${ts}`
-      return { ...mapRaw(i), patient_id, record_uid: uid }
+      if (!i.id) return { ...mapRaw(i), patient_id, record_uid: legacyUid(i) }
+      if (label !== 'hr') return { ...mapRaw(i), patient_id, record_uid: i.id, source_record_id: i.id }
+      const rv = Number.isFinite(Number(i.rv)) ? Number(i.rv) : null
+      return { ...mapRaw(i), patient_id, record_uid: `${i.id}#${Date.parse(i.time)}`, source_record_id: i.id, source_modified_ms: rv }
     })
+    const keyed = rawRows.filter(r => r.source_record_id)
+    const unkeyed = rawRows.filter(r => !r.source_record_id)
+
+    let errRaw = null
+    if (keyed.length) {
+      const { error } = await sb.from(rawTable).upsert(keyed, { onConflict: 'record_uid' })
+      if (error) errRaw = error
+    }
+    if (unkeyed.length) {
+      const { error } = await sb.from(rawTable).upsert(unkeyed, { onConflict: 'record_uid', ignoreDuplicates: true })
+      if (error) errRaw = error
+    }
+    // Fails the whole batch: the client keeps it queued and the idempotency receipt isn't written
+    if (errRaw) throw new Error(`${label} raw upsert failed: ${errRaw.message}`)
+    if (keyed.length) await dropLegacyRows(m, items.filter(i => i.id).map(i => i.time || i.startTime))
+
+    const days = new Set()
+    for (const i of items) days.add(toDateWithOffset(i.time || i.endTime || i.startTime, 480))
+
+    const prunedTs = label === 'hr' ? await pruneEditedHrSamples(keyed) : []
+    for (const ts of prunedTs) days.add(toDateWithOffset(ts, 480))
+
+    // The hour/day totals are only ever rebuilt from the stored rows: the payload may hold part
+    // of a day, and totals built from it would overwrite the whole day. A failed reload fails
+    // the batch so the client sends it again.
+    const stored = await selectDayRuns(sb, rawTable, rawSource.columns, patient_id, rawSource.tsCol, days)
+    if (!stored.length && !prunedTs.length) {
+      console.error(`[sync-metrics] ${label} raw reload found no rows; aggregates left as they were`)
+      return
+    }
+    const remaining = stored.map(rawSource.toItem)
+    await upsertAggregates(m, remaining, days)
+    if (prunedTs.length) await dropEmptiedAggregates(m, remaining, prunedTs)
+  }
+
+  // An edited HR record comes back with a newer version and possibly fewer or moved samples.
+  // Its rows from older versions (or from before versions were sent) are dropped once the new
+  // samples are in. Only older versions go: a record split across chunks keeps the new-version
+  // samples earlier chunks wrote. Returns the timestamps of the dropped rows.
+  const pruneEditedHrSamples = async (rows) => {
+    const versions = new Map()
+    for (const r of rows) if (r.source_modified_ms !== null) versions.set(r.source_record_id, r.source_modified_ms)
+    const dropped = []
+    const entries = [...versions]
+    // One delete per record (each has its own version), a few at a time
+    for (let i = 0; i < entries.length; i += 8) {
+      await Promise.all(entries.slice(i, i + 8).map(async ([recordId, rv]) => {
+        const { data, error } = await sb.from('hr_sample').delete()
+          .eq('patient_id', patient_id)
+          .eq('source_record_id', recordId)
+          .or(`source_modified_ms.is.null,source_modified_ms.lt.${rv}`)
+          .select('time_ts')
+        if (error) throw new Error(`hr prune failed: ${error.message}`)
+        for (const r of data || []) dropped.push(r.time_ts)
+      }))
+    }
+    return dropped
+  }
+
+  // Hour and day rows whose samples were all removed; [remaining] are the stored items reloaded for their days
+  const dropEmptiedAggregates = async (m, remaining, removedTs) => {
+    const presentDays = new Set()
+    const presentHours = new Set()
+    for (const i of remaining) {
+      const ts = i.time || i.endTime || i.startTime
+      presentDays.add(toDateWithOffset(ts, 480))
+      presentHours.add(toHourWithOffset(ts, 480))
+    }
+    const emptiedHours = [...new Set(removedTs.map(ts => toHourWithOffset(ts, 480)))].filter(h => !presentHours.has(h))
+    if (emptiedHours.length) await sb.from(m.hourTable).delete().eq('patient_id', patient_id).in('hour_ts', emptiedHours)
+    const emptiedDays = [...new Set(removedTs.map(ts => toDateWithOffset(ts, 480)))].filter(d => !presentDays.has(d))
+    if (emptiedDays.length) await sb.from(m.dayTable).delete().eq('patient_id', patient_id).in('date', emptiedDays)
+  }
 
-    const { error: errRaw } = await sb.from(rawTable).upsert(rawRows, { onConflict: 'record_uid', ignoreDuplicates: true })
-    if (errRaw) console.error(`[sync-metrics] ${label} raw error:`, errRaw.message)
+  // Rows stored under the timestamp UID before this client sent record ids would now be
+  // counted twice. Checked cheaply first, since once a patient's history is re-keyed there are none.
+  // Matched on the timestamp column rather than the UID string: old clients built the UID from
+  // Instant.toString(), which leaves out zero millis, while expanded compact samples always carry them.
+  const dropLegacyRows = async (m, timestamps) => {
+    try {
+      const { data } = await sb.from(m.rawTable).select('id').eq('patient_id', patient_id).is('source_record_id', null).limit(1)
+      if (!data || !data.length) return
+      for (let i = 0; i < timestamps.length; i += 200) {
+        const { error } = await sb.from(m.rawTable).delete().eq('patient_id', patient_id).is('source_record_id', null).in(m.legacyTsCol, timestamps.slice(i, i + 200))
+        if (error) console.error(`[sync-metrics] ${m.label} legacy cleanup error:`, error.message)
+      }
+    } catch (e) {
+      console.error(`[sync-metrics] ${m.label} legacy cleanup error:`, e.message)
+    }
+  }
 
+  const upsertAggregates = async (m, source, days) => {
+    const { label, hourTable, dayTable, aggFn, finalizeFn } = m
     // 2. Aggregate Hour & Day
     const hourMap = new Map()
     const dayMap = new Map()
 
-    for (const i of items) {
+    for (const i of source) {
       const ts = i.time || i.endTime || i.startTime
       // Bucket by Malaysia Time (UTC+8) for hour aggregates
-      const h = toHourWithOffset(ts, 480)
       const d = toDateWithOffset(ts, 480)
+      if (!days.has(d)) continue
+      const h = toHourWithOffset(ts, 480)
       aggFn(hourMap, h, i)
       aggFn(dayMap, d, i)
     }
@@ -458,7 +670,7 @@ app.post('/patient/sync-metrics', async (req, res) => {
     }
     if (hourRows.length) {
       const { error } = await sb.from(hourTable).upsert(hourRows, { onConflict: 'patient_id, hour_ts' })
-      if (error) console.error(`[sync-metrics] ${label} hour error:`, error.message)
+      if (error) throw new Error(`${label} hour upsert failed: ${error.message}`)
     }
 
     const dayRows = []
@@ -468,118 +680,303 @@ app.post('/patient/sync-metrics', async (req, res) => {
     }
     if (dayRows.length) {
       const { error } = await sb.from(dayTable).upsert(dayRows, { onConflict: 'patient_id, date' })
-      if (error) console.error(`[sync-metrics] ${label} day error:`, error.message)
+      if (error) throw new Error(`${label} day upsert failed: ${error.message}`)
     }
   }
 
+  // Records deleted in Health Connect: drop the matching raw rows, then rebuild their days
+  const processDeletions = async (ids, metrics) => {
+    if (!Array.isArray(ids) || ids.length === 0) return
+    for (const m of metrics) {
+      const { data, error } = await sb.from(m.rawTable).delete().eq('patient_id', patient_id).in('source_record_id', ids).select(m.rawSource.columns)
+      if (error) throw new Error(`${m.label} delete failed: ${error.message}`)
+      if (!data || !data.length) continue
+      const deletedTs = data.map(r => { const i = m.rawSource.toItem(r); return i.time || i.endTime || i.startTime })
+      const days = new Set(deletedTs.map(ts => toDateWithOffset(ts, 480)))
+      const stored = await selectDayRuns(sb, m.rawTable, m.rawSource.columns, patient_id, m.rawSource.tsCol, days)
+      const remaining = stored.map(m.rawSource.toItem)
+      await upsertAggregates(m, remaining, days)
+      await dropEmptiedAggregates(m, remaining, deletedTs)
+    }
+  }
+
+  const steps = {
+    label: 'steps',
+    // Column holding the timestamp the pre-record-id UID was built from
+    legacyTsCol: 'start_ts',
+    rawTable: 'steps_event',
+    hourTable: 'steps_hour',
+    dayTable: 'steps_day',
+    mapRaw: (i) => ({ start_ts: i.startTime, end_ts: i.endTime, count: i.count }),
+    aggFn: (map, key, i) => map.set(key, (map.get(key) || 0) + i.count),
+    finalizeFn: (val) => ({ steps_total: val }),
+    rawSource: { columns: 'start_ts,end_ts,count', tsCol: 'end_ts', toItem: (r) => ({ startTime: r.start_ts, endTime: r.end_ts, count: r.count }) }
+  }
+
+  const distance = {
+    label: 'distance',
+    legacyTsCol: 'start_ts',
+    rawTable: 'distance_event',
+    hourTable: 'distance_hour',
+    dayTable: 'distance_day',
+    mapRaw: (i) => ({ start_ts: i.startTime, end_ts: i.endTime, meters: Math.round(i.distanceMeters) }),
+    aggFn: (map, key, i) => map.set(key, (map.get(key) || 0) + i.distanceMeters),
+    finalizeFn: (val) => ({ meters_total: Math.round(val) }),
+    rawSource: { columns: 'start_ts,end_ts,meters', tsCol: 'end_ts', toItem: (r) => ({ startTime: r.start_ts, endTime: r.end_ts, distanceMeters: r.meters }) }
+  }
+
+  const hr = {
+    label: 'hr',
+    legacyTsCol: 'time_ts',
+    rawTable: 'hr_sample',
+    hourTable: 'hr_hour',
+    dayTable: 'hr_day',
+    mapRaw: (i) => ({ time_ts: i.time, bpm: i.bpm }),
+    aggFn: (map, key, i) => {
+      const curr = map.get(key) || { min: 999, max: 0, sum: 0, count: 0 }
+      curr.min = Math.min(curr.min, i.bpm)
+      curr.max = Math.max(curr.max, i.bpm)
+      curr.sum += i.bpm
+      curr.count++
+      map.set(key, curr)
+    },
+    finalizeFn: (val) => ({ hr_min: Math.round(val.min), hr_max: Math.round(val.max), hr_avg: Math.round(val.sum / val.count), hr_count: val.count }),
+    rawSource: { columns: 'time_ts,bpm', tsCol: 'time_ts', toItem: (r) => ({ time: r.time_ts, bpm: r.bpm }) }
+  }
+
+  const spo2 = {
+    label: 'spo2',
+    legacyTsCol: 'time_ts',
+    rawTable: 'spo2_sample',
+    hourTable: 'spo2_hour',
+    dayTable: 'spo2_day',
+    mapRaw: (i) => ({ time_ts: i.time, spo2_pct: i.percentage }),
+    aggFn: (map, key, i) => {
+      const curr = map.get(key) || { min: 999, max: 0, sum: 0, count: 0 }
+      curr.min = Math.min(curr.min, i.percentage)
+      curr.max = Math.max(curr.max, i.percentage)
+      curr.sum += i.percentage
+      curr.count++
+      map.set(key, curr)
+    },
+    finalizeFn: (val) => ({ spo2_min: Math.round(val.min), spo2_max: Math.round(val.max), spo2_avg: Math.round(val.sum / val.count), spo2_count: val.count }),
+    rawSource: { columns: 'time_ts,spo2_pct', tsCol: 'time_ts', toItem: (r) => ({ time: r.time_ts, percentage: r.spo2_pct }) }
+  }
+
+  // allSettled so a failing metric doesn't release the patient queue while the others still write
+  const results = await Promise.allSettled([
+    processMetric(steps, steps_samples),
+    processMetric(distance, distance_samples),
+    processMetric(hr, hr_samples),
+    processMetric(spo2, spo2_samples)
+  ])
+  const failed = results.find(r => r.status === 'rejected')
+  if (failed) throw failed.reason
+  await processDeletions(deleted_record_ids, [steps, distance, hr, spo2])
+
   try {
-    // STEPS
-    await processMetric(
-      'steps',
-      steps_samples,
-      'steps_event',
-      'steps_hour',
-      'steps_day',
-      (i) => ({ start_ts: i.startTime, end_ts: i.endTime, count: i.count }),
-      (map, key, i) => map.set(key, (map.get(key) || 0) + i.count),
-      (val) => ({ steps_total: val })
-    )
-
-    // DISTANCE
-    await processMetric(
-      'distance',
-      distance_samples,
-      'distance_event',
-      'distance_hour',
-      'distance_day',
-      (i) => ({ start_ts: i.startTime, end_ts: i.endTime, meters: Math.round(i.distanceMeters) }),
-      (map, key, i) => map.set(key, (map.get(key) || 0) + i.distanceMeters),
-      (val) => ({ meters_total: Math.round(val) })
-    )
-
-    // HR
-    await processMetric(
-      'hr',
-      hr_samples,
-      'hr_sample',
-      'hr_hour',
-      'hr_day',
-      (i) => ({ time_ts: i.time, bpm: i.bpm }),
-      (map, key, i) => {
-        const curr = map.get(key) || { min: 999, max: 0, sum: 0, count: 0 }
-        curr.min = Math.min(curr.min, i.bpm)
-        curr.max = Math.max(curr.max, i.bpm)
-        curr.sum += i.bpm
-        curr.count++
-        map.set(key, curr)
-      },
-      (val) => ({ hr_min: Math.round(val.min), hr_max: Math.round(val.max), hr_avg: Math.round(val.sum / val.count), hr_count: val.count })
-    )
-
-    // SPO2
-    await processMetric(
-      'spo2',
-      spo2_samples,
-      'spo2_sample',
-      'spo2_hour',
-      'spo2_day',
-      (i) => ({ time_ts: i.time, spo2_pct: i.percentage }),
-      (map, key, i) => {
-        const curr = map.get(key) || { min: 999, max: 0, sum: 0, count: 0 }
-        curr.min = Math.min(curr.min, i.percentage)
-        curr.max = Math.max(curr.max, i.percentage)
-        curr.sum += i.percentage
-        curr.count++
-        map.set(key, curr)
-      },
-      (val) => ({ spo2_min: Math.round(val.min), spo2_max: Math.round(val.max), spo2_avg: Math.round(val.sum / val.count), spo2_count: val.count })
-    )
+    const offsetMin = 480
+    const candidates = []
+      ; (steps_samples || []).forEach(s => {
+        if (s.endTime) {
+          const utcMs = new Date(s.endTime).getTime()
+          const localMs = utcMs + offsetMin * 60000
+          candidates.push({ utcMs, localMs, ts: s.endTime })
+        }
+      })
+      ; (distance_samples || []).forEach(s => {
+        if (s.endTime) {
+          const utcMs = new Date(s.endTime).getTime()
+          const localMs = utcMs + offsetMin * 60000
+          candidates.push({ utcMs, localMs, ts: s.endTime })
+        }
+      })
+      ; (hr_samples || []).forEach(s => {
+        if (s.time) {
+          const utcMs = new Date(s.time).getTime()
+          const localMs = utcMs + offsetMin * 60000
+          candidates.push({ utcMs, localMs, ts: s.time })
+        }
+      })
+      ; (spo2_samples || []).forEach(s => {
+        if (s.time) {
+          const utcMs = new Date(s.time).getTime()
+          const localMs = utcMs + offsetMin * 60000
+          candidates.push({ utcMs, localMs, ts: s.time })
+        }
+      })
+    if (candidates.length) {
+      const best = candidates.reduce((m, c) => (c.localMs > m.localMs ? c : m))
+      const maxTs = new Date(best.ts).toISOString()
+      await sb.from('device_sync_status').upsert({ patient_id, last_sync_ts: maxTs, updated_at: new Date().toISOString() }, { onConflict: 'patient_id' })
+    }
+  } catch (_) { }
+}
 
-    try {
-      const offsetMin = 480
-      const candidates = []
-        ; (steps_samples || []).forEach(s => {
-          if (s.endTime) {
-            const utcMs = new Date(s.endTime).getTime()
-            const localMs = utcMs + offsetMin * 60000
-            candidates.push({ utcMs, localMs, ts: s.endTime })
-          }
-        })
-        ; (distance_samples || []).forEach(s => {
-          if (s.endTime) {
-            const utcMs = new Date(s.endTime).getTime()
-            const localMs = utcMs + offsetMin * 60000
-            candidates.push({ utcMs, localMs, ts: s.endTime })
-          }
-        })
-        ; (hr_samples || []).forEach(s => {
-          if (s.time) {
-            const utcMs = new Date(s.time).getTime()
-            const localMs = utcMs + offsetMin * 60000
-            candidates.push({ utcMs, localMs, ts: s.time })
-          }
-        })
-        ; (spo2_samples || []).forEach(s => {
-          if (s.time) {
-            const utcMs = new Date(s.time).getTime()
-            const localMs = utcMs + offsetMin * 60000
-            candidates.push({ utcMs, localMs, ts: s.time })
-          }
-        })
-      if (candidates.length) {
-        const best = candidates.reduce((m, c) => (c.localMs > m.localMs ? c : m))
-        const maxTs = new Date(best.ts).toISOString()
-        await sb.from('device_sync_status').upsert({ patient_id, last_sync_ts: maxTs, updated_at: new Date().toISOString() }, { onConflict: 'patient_id' })
-      }
-    } catch (_) { }
-    return res.status(200).json({ ok: true })
+app.post('/patient/sync-metrics', async (req, res) => {
+  const body = req.is(COMPACT_SYNC_TYPE) ? withCompactSamples(req.body) : req.body
+  const { patient_id, date } = body
+  res.set('X-Sync-Encodings', 'json, compact')
 
+  if (!patient_id) {
+    return res.status(400).json({ error: 'Missing patient_id' })
+  }
+
+  const sb = syncClientFor(req)
+  console.log(`[sync-metrics] Syncing for ${patient_id} on ${date || 'unknown date'} (Auth: ${!!req.headers.authorization})`)
+
+  try {
+    await syncMetricsBatch(sb, patient_id, body)
+    return res.status(200).json({ ok: true })
   } catch (e) {
     console.error('[sync-metrics] exception:', e)
     return res.status(500).json({ error: e.message })
   }
 })
 
+// Completed sync batches by Idempotency-Key, kept for a week
+const SYNC_RECEIPT_TTL_MS = 7 * 86400000
+async function syncBatchAlreadyApplied(sb, patient_id, key) {
+  if (!key) return false
+  try {
+    const { data, error } = await sb.from('sync_batch_receipt').select('idempotency_key').eq('patient_id', patient_id).eq('idempotency_key', key).maybeSingle()
+    return !error && !!data
+  } catch (_) {
+    return false
+  }
+}
+async function recordSyncBatch(sb, patient_id, key) {
+  if (!key) return
+  try {
+    await sb.from('sync_batch_receipt').upsert({ patient_id, idempotency_key: key, completed_at: new Date().toISOString() }, { onConflict: 'patient_id, idempotency_key', ignoreDuplicates: true })
+    await sb.from('sync_batch_receipt').delete().eq('patient_id', patient_id).lt('completed_at', new Date(Date.now() - SYNC_RECEIPT_TTL_MS).toISOString())
+  } catch (e) {
+    console.error('[sync-batch] receipt error:', e && e.message ? e.message : e)
+  }
+}
+
+// Multi-day upload: { patient_id, days: [{ date, steps_samples, distance_samples, hr_samples, spo2_samples }], deleted_record_ids }
+// With the compact content type a day carries hr_columns / spo2_columns instead of hr_samples / spo2_samples.
+// All days are merged and go through syncMetricsBatch once, so a week of catch-up is one request.
+const SYNC_BATCH_MAX_DAYS = 366
+// Upload size the client should stay under, measured on the uncompressed JSON so it holds
+// whether or not the body is gzipped. Set below the smallest body limit of any proxy in front of us.
+const SYNC_CHUNK_MAX_BYTES = Number(process.env.SYNC_CHUNK_MAX_BYTES) || 900 * 1024
+const SYNC_CHUNK_MAX_SAMPLES = Number(process.env.SYNC_CHUNK_MAX_SAMPLES) || 10000
+
+function syncCapabilities() {
+  return {
+    encodings: ['json', 'compact'],
+    max_body_bytes: SYNC_CHUNK_MAX_BYTES,
+    max_samples: SYNC_CHUNK_MAX_SAMPLES,
+    max_days: SYNC_BATCH_MAX_DAYS
+  }
+}
+
+// Limits and encodings for /patient/sync-batch; clients size their uploads from this
+app.get('/patient/sync-capabilities', (req, res) => {
+  res.set('X-Sync-Encodings', 'json, compact')
+  return res.status(200).json(syncCapabilities())
+})
+
+// Everything a background wakeup needs in one request:
+//   reminders     reminders created or edited after ?since (all of them without it)
+//   reminder_ids  ids of every current reminder, so the client can drop deleted ones
+//   cursor        pass back as ?since next time; only moves when a reminder changes
+//   medications   medication notification preferences
+//   daily_status  logging status for ?date (the client's today)
+//   sync_limits   same document as /patient/sync-capabilities
+const DEVICE_STATE_VERSION = 1
+app.get('/patient/device-state', async (req, res) => {
+  const pid = req.query && req.query.patientId
+  const date = req.query && req.query.date
+  const since = req.query && req.query.since ? Date.parse(req.query.since) : NaN
+  if (!pid) return res.status(400).json({ error: 'missing patientId' })
+
+  try {
+    const [r, medications, dailyStatus] = await Promise.all([
+      supabase.from('reminders').select('*').eq('patient_id', pid).order('due_ts', { ascending: true }),
+      medicationPreferences(pid).catch((e) => {
+        console.error('[device-state] medications error:', e.message)
+        return null
+      }),
+      date ? dailyLogStatus(pid, date).catch(() => null) : Promise.resolve(null)
+    ])
+    if (r.error) return res.status(400).json({ error: r.error.message })
+
+    const rows = r.data || []
+    let cursor = 0
+    const changedAt = (x) => Date.parse(x.updated_at || x.created_at || '') || 0
+    for (const x of rows) cursor = Math.max(cursor, changedAt(x))
+    const changed = Number.isFinite(since) ? rows.filter((x) => changedAt(x) > since) : rows
+
+    return sendJsonWithEtag(req, res, {
+      version: DEVICE_STATE_VERSION,
+      cursor: cursor ? new Date(cursor).toISOString() : null,
+      reminders: changed.map((x) => ({ id: x.id, date: x.due_ts, title: x.title, notes: x.notes })),
+      reminder_ids: rows.map((x) => x.id),
+      medications,
+      daily_status: dailyStatus ? { date, ...dailyStatus } : null,
+      sync_limits: syncCapabilities()
+    })
+  } catch (e) {
+    console.error('[device-state] error:', e)
+    return res.status(500).json({ error: e.message })
+  }
+})
+
+app.post('/patient/sync-batch', async (req, res) => {
+  const { patient_id, days, deleted_record_ids } = req.body
+  res.set('X-Sync-Encodings', 'json, compact')
+
+  if (!patient_id) {
+    return res.status(400).json({ error: 'Missing patient_id' })
+  }
+  if (!Array.isArray(days)) {
+    return res.status(400).json({ error: 'days must be an array' })
+  }
+  if (days.length > SYNC_BATCH_MAX_DAYS) {
+    return res.status(413).json({ error: `At most ${SYNC_BATCH_MAX_DAYS} days per batch` })
+  }
+
+  if (days.some(d => !d || typeof d !== 'object' || Array.isArray(d))) {
+    return res.status(400).json({ error: 'each day must be an object' })
+  }
+
+  const merged = { steps_samples: [], distance_samples: [], hr_samples: [], spo2_samples: [], deleted_record_ids }
+  const compact = !!req.is(COMPACT_SYNC_TYPE)
+  for (const raw of days) {
+    const d = compact ? withCompactSamples(raw) : raw
+    for (const key of ['steps_samples', 'distance_samples', 'hr_samples', 'spo2_samples']) {
+      if (Array.isArray(d[key])) for (const item of d[key]) merged[key].push(item)
+    }
+  }
+
+  const sb = syncClientFor(req)
+  const idempotencyKey = req.get('Idempotency-Key') || null
+
+  try {
+    // The receipt check and write run inside the patient's queue, so a retry racing the original
+    // request waits for it and then sees its receipt instead of ingesting the batch a second time
+    const duplicate = await queuePatientSync(patient_id, async () => {
+      if (await syncBatchAlreadyApplied(sb, patient_id, idempotencyKey)) return true
+      console.log(`[sync-batch] Syncing ${days.length} day(s) for ${patient_id} (Auth: ${!!req.headers.authorization})`)
+      await runSyncMetricsBatch(sb, patient_id, merged)
+      // Only reached once every metric and deletion has been written
+      await recordSyncBatch(sb, patient_id, idempotencyKey)
+      return false
+    })
+    if (duplicate) {
+      console.log(`[sync-batch] ${idempotencyKey} already applied for ${patient_id}`)
+      return res.status(200).json({ ok: true, duplicate: true })
+    }
+    return res.status(200).json({ ok: true, days: days.map(d => d.date).filter(Boolean) })
+  } catch (e) {
+    console.error('[sync-batch] exception:', e)
+    return res.status(500).json({ error: e.message })
+  }
+})
+
 
 
 // --- Blood Pressure Module Routes ---
@@ -897,21 +1294,25 @@ app.get('/health', healthHandler)
 
 
 // Check daily log status (weight, bp, symptoms)
+async function dailyLogStatus(patientId, date) {
+  if (supabaseMock) {
+    return { has_weight: false, has_bp: false, has_symptoms: false }
+  }
+  const w = await supabase.from('weight_day').select('date').eq('patient_id', patientId).eq('date', date).maybeSingle()
+  const bp = await supabase.from('bp_readings').select('reading_date').eq('patient_id', patientId).eq('reading_date', date).maybeSingle()
+  const s = await supabase.from('symptom_log').select('date').eq('patient_id', patientId).eq('date', date).maybeSingle()
+  return {
+    has_weight: !!(w && w.data),
+    has_bp: !!(bp && bp.data),
+    has_symptoms: !!(s && s.data)
+  }
+}
+
 app.get('/patient/daily-status', async (req, res) => {
   const { patientId, date } = req.query
   if (!patientId || !date) return res.status(400).json({ error: 'Missing params' })
   try {
-    if (supabaseMock) {
-      return res.json({ has_weight: false, has_bp: false, has_symptoms: false })
-    }
-    const w = await supabase.from('weight_day').select('date').eq('patient_id', patientId).eq('date', date).maybeSingle()
-    const bp = await supabase.from('bp_readings').select('reading_date').eq('patient_id', patientId).eq('reading_date', date).maybeSingle()
-    const s = await supabase.from('symptom_log').select('date').eq('patient_id', patientId).eq('date', date).maybeSingle()
-    return res.json({
-      has_weight: !!(w && w.data),
-      has_bp: !!(bp && bp.data),
-      has_symptoms: !!(s && s.data)
-    })
+    return res.json(await dailyLogStatus(patientId, date))
   } catch (e) {
     return res.status(500).json({ error: e.message })
   }
@@ -986,7 +1387,7 @@ app.get('/patient/summary', async (req, res) => {
       distanceToday: null,
       lastSyncTs: null,
     }
-    return res.status(200).json({ summary })
+    return sendJsonWithEtag(req, res, { summary })
   }
   const hr = await supabase.from('hr_day').select('date,hr_avg').eq('patient_id', pid).order('date', { ascending: false }).limit(1)
   if (hr.error) return res.status(400).json({ error: hr.error.message })
@@ -1036,7 +1437,7 @@ app.get('/patient/summary', async (req, res) => {
     lastSyncTs,
   }
   console.log('[patient/summary] summary computed')
-  return res.status(200).json({ summary })
+  return sendJsonWithEtag(req, res, { summary })
 })
 
 app.get('/patient/vitals', async (req, res) => {
@@ -1497,7 +1898,7 @@ app.get('/patient/reminders', async (req, res) => {
     title: x.title,
     notes: x.notes
   }))
-  return res.status(200).json({ reminders })
+  return sendJsonWithEtag(req, res, { reminders })
 })
 
 // Appointments endpoint (aliases reminders for now)